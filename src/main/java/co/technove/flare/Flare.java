@@ -23,6 +23,11 @@ public interface Flare {
 
     IntervalManager getIntervalManager();
 
+    /**
+     * Returns what this Flare has cost the process so far.
+     */
+    FlareStats getStats();
+
     void start() throws IllegalStateException, UserReportableException;
 
     void stop() throws IllegalStateException;
@@ -4,12 +4,18 @@ import co.technove.flare.internal.FlareInternal;
 import co.technove.flare.internal.profiling.ProfileType;
 import co.technove.flare.live.Collector;
 import co.technove.flare.live.category.GraphCategory;
+import co.technove.flare.sink.HttpProfileSink;
+import co.technove.flare.sink.ProfileSink;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
@@ -20,8 +26,15 @@ public class FlareBuilder {
     private final Map<String, String> versions = new HashMap<>();
     private final Set<Collector> collectors = new HashSet<>();
     private final Set<GraphCategory> graphCategories = new HashSet<>();
+    private final List<ProfileSink> sinks = new ArrayList<>();
     private ProfileType profileType = ProfileType.ITIMER;
     private boolean profileMemory = false;
+    private boolean continuousProfiling = false;
+    private int parserThreads = 1;
+    private int deltaKeyframeInterval = 0;
+    private boolean threadCpuTime = false;
+    private Path uploadSpoolDirectory = HttpProfileSink.DEFAULT_SPOOL_DIRECTORY;
+    private long uploadSpoolLimit = HttpProfileSink.DEFAULT_SPOOL_LIMIT;
     private Duration interval = Duration.ofMillis(5);
     private FlareAuth auth;
     private Function<String, Optional<String>> classIdentifier;
@@ -41,16 +54,80 @@ public class FlareBuilder {
         return this;
     }
 
+    public FlareBuilder withContinuousProfiling(boolean continuousProfiling) {
+        this.continuousProfiling = continuousProfiling;
+        return this;
+    }
+
+    /**
+     * Limits how many cores may be used to parse a recording. Values above one split each recording across a
+     * dedicated pool, capped at the number of available processors.
+     */
+    public FlareBuilder withParserThreads(int parserThreads) {
+        if (parserThreads < 1) {
+            throw new IllegalArgumentException("At least one parser thread is required");
+        }
+        this.parserThreads = parserThreads;
+        return this;
+    }
+
+    /**
+     * Sends profile windows as deltas against the previous window, with a full window every
+     * {@code keyframeInterval} windows. Zero, the default, always sends full windows. The receiving end must
+     * understand delta windows.
+     */
+    public FlareBuilder withDeltaWindows(int keyframeInterval) {
+        if (keyframeInterval < 0) {
+            throw new IllegalArgumentException("Keyframe interval must not be negative");
+        }
+        this.deltaKeyframeInterval = keyframeInterval;
+        return this;
+    }
+
+    /**
+     * Turns on thread CPU time measurement if it is off, so threads are judged active by the CPU time they use rather
+     * than by being runnable. This is a JVM wide setting and stays on after Flare stops. Off by default.
+     */
+    public FlareBuilder withThreadCpuTime(boolean threadCpuTime) {
+        this.threadCpuTime = threadCpuTime;
+        return this;
+    }
+
+    /**
+     * Sets where uploads to the server given by {@link #withAuth(FlareAuth)} are spooled while it is unreachable or
+     * falling behind, and how many bytes the spool may use. Uploads that do not fit are dropped.
+     */
+    public FlareBuilder withUploadSpool(Path directory, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Spool limit must not be negative");
+        }
+        this.uploadSpoolDirectory = Objects.requireNonNull(directory, "Spool directory must be defined");
+        this.uploadSpoolLimit = maxBytes;
+        return this;
+    }
+
     public FlareBuilder withInterval(Duration interval) {
         this.interval = interval;
         return this;
     }
 
+    /**
+     * Uploads the profile to the given Flare server, in addition to any other sinks.
+     */
     public FlareBuilder withAuth(FlareAuth auth) {
         this.auth = auth;
         return this;
     }
 
+    /**
+     * Adds destinations for the profile. Every sink receives all data; at least one sink or
+     * {@link #withAuth(FlareAuth)} is required.
+     */
+    public FlareBuilder withSinks(ProfileSink... sinks) {
+        this.sinks.addAll(Arrays.asList(sinks));
+        return this;
+    }
+
     public FlareBuilder withFile(String name, String contents) {
         this.files.put(name, contents);
         return this;
@@ -92,14 +169,24 @@ public class FlareBuilder {
     }
 
     public Flare build() {
+        List<ProfileSink> sinks = new ArrayList<>();
+        if (this.auth != null) {
+            sinks.add(new HttpProfileSink(this.auth, this.uploadSpoolDirectory, this.uploadSpoolLimit));
+        }
+        sinks.addAll(this.sinks);
+
         return new FlareInternal(
                 this.profileType,
                 this.profileMemory,
+                this.continuousProfiling,
+                this.parserThreads,
+                this.deltaKeyframeInterval,
+                this.threadCpuTime,
                 this.interval,
                 this.files,
                 this.versions,
                 this.collectors,
-                this.auth,
+                sinks,
                 this.classIdentifier,
                 this.graphCategories,
                 this.hardwareBuilder,
@@ -0,0 +1,208 @@
+package co.technove.flare;
+
+import co.technove.flare.internal.util.IntervalManager;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Snapshot of what a Flare has cost this process. Counters are totals since that Flare was built; the thread figures
+ * cover every thread it started, including those that have finished.
+ */
+public final class FlareStats {
+    private final long parseNanos;
+    private final long parsedBytes;
+    private final long parsedEvents;
+    private final long aggregationNanos;
+    private final int treeNodes;
+    private final int dictionarySize;
+    private final long encodeNanos;
+    private final long encodedBytes;
+    private final long windows;
+    private final long uploads;
+    private final long uploadedBytes;
+    private final long uploadNanos;
+    private final long droppedValues;
+    private final long pluginCacheHits;
+    private final long pluginCacheMisses;
+    private final int activeThreads;
+    private final long activatedThreads;
+    private final long deactivatedThreads;
+    private final List<IntervalManager.TaskStats> taskStats;
+    private final long threadCpuNanos;
+    private final long threadAllocatedBytes;
+
+    public FlareStats(long parseNanos, long parsedBytes, long parsedEvents, long aggregationNanos, int treeNodes, int dictionarySize,
+                      long encodeNanos, long encodedBytes, long windows, long uploads, long uploadedBytes, long uploadNanos,
+                      long droppedValues, long pluginCacheHits, long pluginCacheMisses, int activeThreads, long activatedThreads, long deactivatedThreads,
+                      List<IntervalManager.TaskStats> taskStats, long threadCpuNanos, long threadAllocatedBytes) {
+        this.parseNanos = parseNanos;
+        this.parsedBytes = parsedBytes;
+        this.parsedEvents = parsedEvents;
+        this.aggregationNanos = aggregationNanos;
+        this.treeNodes = treeNodes;
+        this.dictionarySize = dictionarySize;
+        this.encodeNanos = encodeNanos;
+        this.encodedBytes = encodedBytes;
+        this.windows = windows;
+        this.uploads = uploads;
+        this.uploadedBytes = uploadedBytes;
+        this.uploadNanos = uploadNanos;
+        this.droppedValues = droppedValues;
+        this.pluginCacheHits = pluginCacheHits;
+        this.pluginCacheMisses = pluginCacheMisses;
+        this.activeThreads = activeThreads;
+        this.activatedThreads = activatedThreads;
+        this.deactivatedThreads = deactivatedThreads;
+        this.taskStats = List.copyOf(taskStats);
+        this.threadCpuNanos = threadCpuNanos;
+        this.threadAllocatedBytes = threadAllocatedBytes;
+    }
+
+    /**
+     * Returns the time spent reading events from recordings.
+     */
+    public Duration getParseTime() {
+        return Duration.ofNanos(parseNanos);
+    }
+
+    /**
+     * Returns the size of the recordings read.
+     */
+    public long getParsedBytes() {
+        return parsedBytes;
+    }
+
+    /**
+     * Returns how many samples were read from recordings.
+     */
+    public long getParsedEvents() {
+        return parsedEvents;
+    }
+
+    /**
+     * Returns the time spent building call trees from the samples read.
+     */
+    public Duration getAggregationTime() {
+        return Duration.ofNanos(aggregationNanos);
+    }
+
+    /**
+     * Returns how many call tree nodes the latest window had, over all threads.
+     */
+    public int getTreeNodes() {
+        return treeNodes;
+    }
+
+    /**
+     * Returns how many methods the method dictionary of the latest profile holds.
+     */
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    /**
+     * Returns the time spent encoding windows.
+     */
+    public Duration getEncodeTime() {
+        return Duration.ofNanos(encodeNanos);
+    }
+
+    /**
+     * Returns the size of the encoded windows, before compression.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * Returns how many windows were encoded.
+     */
+    public long getWindows() {
+        return windows;
+    }
+
+    /**
+     * Returns how many uploads to the Flare server succeeded.
+     */
+    public long getUploads() {
+        return uploads;
+    }
+
+    /**
+     * Returns the compressed size of the successful uploads.
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * Returns the time the successful uploads took, from sending the request to receiving the response.
+     */
+    public Duration getUploadTime() {
+        return Duration.ofNanos(uploadNanos);
+    }
+
+    /**
+     * Returns how many live collector values were dropped because more were reported than fit between two timelines.
+     */
+    public long getDroppedValues() {
+        return droppedValues;
+    }
+
+    /**
+     * Returns how many plugin lookups for a class were answered from the cache.
+     */
+    public long getPluginCacheHits() {
+        return pluginCacheHits;
+    }
+
+    /**
+     * Returns how many plugin lookups for a class had to ask the plugin identifier.
+     */
+    public long getPluginCacheMisses() {
+        return pluginCacheMisses;
+    }
+
+    /**
+     * Returns the CPU time used by Flare threads, or a negative duration if the JVM does not measure it.
+     */
+    public Duration getThreadCpuTime() {
+        return Duration.ofNanos(threadCpuNanos);
+    }
+
+    /**
+     * Returns the bytes allocated by Flare threads, or -1 if the JVM does not measure it.
+     */
+    public long getThreadAllocatedBytes() {
+        return threadAllocatedBytes;
+    }
+
+    /**
+     * Returns how many threads are currently being profiled.
+     */
+    public int getActiveThreads() {
+        return activeThreads;
+    }
+
+    /**
+     * Returns how many times a thread started being profiled, including newly started threads.
+     */
+    public long getActivatedThreads() {
+        return activatedThreads;
+    }
+
+    /**
+     * Returns how many times a thread stopped being profiled, including profiled threads that finished.
+     */
+    public long getDeactivatedThreads() {
+        return deactivatedThreads;
+    }
+
+    /**
+     * Returns how long each task Flare schedules took to run and how late it started, since it was scheduled.
+     */
+    public List<IntervalManager.TaskStats> getTaskStats() {
+        return taskStats;
+    }
+}
@@ -0,0 +1,125 @@
+package co.technove.flare.collectors;
+
+import co.technove.flare.Flare;
+import co.technove.flare.FlareStats;
+import co.technove.flare.internal.util.IntervalManager;
+import co.technove.flare.live.CollectorData;
+import co.technove.flare.live.LiveCollector;
+import co.technove.flare.live.category.GraphCategory;
+import co.technove.flare.live.formatter.DataFormatter;
+import co.technove.flare.live.formatter.SuffixFormatter;
+
+/**
+ * Reports what Flare itself costs, so its overhead shows up next to the data it collects. Rates are averaged over the
+ * collector interval, times are the totals spent within it.
+ */
+public class FlareOverheadCollector extends LiveCollector {
+
+    private static final CollectorData CPU_TIME = new CollectorData("flare:cpu", "Flare CPU", "CPU time used by Flare threads per second", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData ALLOCATED = new CollectorData("flare:allocated", "Flare Allocations", "Memory allocated by Flare threads per second", DataFormatter.BYTES, GraphCategory.FLARE);
+    private static final CollectorData EVENTS = new CollectorData("flare:events", "Parsed Events", "Profiler samples read per second", SuffixFormatter.of("events/s"), GraphCategory.FLARE);
+    private static final CollectorData PARSE_TIME = new CollectorData("flare:parse", "Parse Time", "Time spent reading recordings", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData PARSED_BYTES = new CollectorData("flare:parsed_bytes", "Parsed Bytes", "Size of the recordings read", DataFormatter.BYTES, GraphCategory.FLARE);
+    private static final CollectorData AGGREGATION_TIME = new CollectorData("flare:aggregation", "Aggregation Time", "Time spent building call trees", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData TREE_NODES = new CollectorData("flare:tree_nodes", "Tree Nodes", "Call tree nodes in the latest window", SuffixFormatter.of("nodes"), GraphCategory.FLARE);
+    private static final CollectorData DICTIONARY_SIZE = new CollectorData("flare:dictionary", "Dictionary Size", "Methods in the method dictionary", SuffixFormatter.of("methods"), GraphCategory.FLARE);
+    private static final CollectorData ENCODE_TIME = new CollectorData("flare:encode", "Encode Time", "Time spent encoding windows", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData UPLOADED_BYTES = new CollectorData("flare:uploaded_bytes", "Uploaded Bytes", "Compressed size of the uploads", DataFormatter.BYTES, GraphCategory.FLARE);
+    private static final CollectorData ACTIVE_THREADS = new CollectorData("flare:active_threads", "Profiled Threads", "Threads currently being profiled", SuffixFormatter.of("threads"), GraphCategory.FLARE);
+    private static final CollectorData THREAD_CHURN = new CollectorData("flare:thread_churn", "Thread Churn", "Threads that started or stopped being profiled per second", SuffixFormatter.of("threads/s"), GraphCategory.FLARE);
+    private static final CollectorData TASK_TIME = new CollectorData("flare:task_time", "Task Time", "Time spent running scheduled Flare tasks", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData TASK_DELAY = new CollectorData("flare:task_delay", "Task Delay", "Average time scheduled Flare tasks started late", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+    private static final CollectorData SKIPPED_RUNS = new CollectorData("flare:skipped_runs", "Skipped Runs", "Runs of scheduled Flare tasks skipped because they were late", SuffixFormatter.of("runs"), GraphCategory.FLARE);
+    private static final CollectorData PLUGIN_LOOKUPS = new CollectorData("flare:plugin_lookups", "Plugin Lookups", "Classes whose plugin had to be identified, not found in the cache", SuffixFormatter.of("lookups"), GraphCategory.FLARE);
+    private static final CollectorData PLUGIN_CACHE_HIT_RATE = new CollectorData("flare:plugin_cache_hit_rate", "Plugin Cache Hit Rate", "Share of plugin lookups answered from the cache", DataFormatter.PERCENT, GraphCategory.FLARE);
+    private static final CollectorData UPLOAD_LATENCY = new CollectorData("flare:upload_latency", "Upload Latency", "Average time an upload took", DataFormatter.MILLISECONDS, GraphCategory.FLARE);
+
+    private Flare flare;
+    private FlareStats previous;
+    private long previousTime;
+
+    public FlareOverheadCollector() {
+        super(CPU_TIME, ALLOCATED, EVENTS, PARSE_TIME, PARSED_BYTES, AGGREGATION_TIME, TREE_NODES, DICTIONARY_SIZE, ENCODE_TIME, UPLOADED_BYTES, UPLOAD_LATENCY, ACTIVE_THREADS, THREAD_CHURN, TASK_TIME, TASK_DELAY, SKIPPED_RUNS, PLUGIN_LOOKUPS, PLUGIN_CACHE_HIT_RATE);
+    }
+
+    @Override
+    public void start(Flare flare) {
+        this.flare = flare;
+        this.previous = flare.getStats();
+        this.previousTime = System.nanoTime();
+        super.start(flare);
+    }
+
+    @Override
+    public void run() {
+        FlareStats stats = this.flare.getStats();
+        long time = System.nanoTime();
+        double seconds = (time - this.previousTime) / 1_000_000_000.0;
+        FlareStats previous = this.previous;
+        this.previous = stats;
+        this.previousTime = time;
+        if (seconds <= 0) {
+            return;
+        }
+
+        if (stats.getThreadCpuTime().toNanos() >= 0) {
+            this.report(CPU_TIME, millis(stats.getThreadCpuTime().toNanos() - previous.getThreadCpuTime().toNanos()) / seconds);
+        }
+        if (stats.getThreadAllocatedBytes() >= 0) {
+            this.report(ALLOCATED, (stats.getThreadAllocatedBytes() - previous.getThreadAllocatedBytes()) / seconds);
+        }
+        this.report(EVENTS, (stats.getParsedEvents() - previous.getParsedEvents()) / seconds);
+        this.report(PARSE_TIME, millis(stats.getParseTime().toNanos() - previous.getParseTime().toNanos()));
+        this.report(PARSED_BYTES, stats.getParsedBytes() - previous.getParsedBytes());
+        this.report(AGGREGATION_TIME, millis(stats.getAggregationTime().toNanos() - previous.getAggregationTime().toNanos()));
+        this.report(TREE_NODES, stats.getTreeNodes());
+        this.report(DICTIONARY_SIZE, stats.getDictionarySize());
+        this.report(ENCODE_TIME, millis(stats.getEncodeTime().toNanos() - previous.getEncodeTime().toNanos()));
+        this.report(UPLOADED_BYTES, stats.getUploadedBytes() - previous.getUploadedBytes());
+        this.report(ACTIVE_THREADS, stats.getActiveThreads());
+        this.report(THREAD_CHURN, (stats.getActivatedThreads() - previous.getActivatedThreads()
+                + stats.getDeactivatedThreads() - previous.getDeactivatedThreads()) / seconds);
+
+        // tasks are never removed and their histograms only grow, so sums and counts can be taken apart by interval
+        TaskTotals tasks = new TaskTotals(stats);
+        TaskTotals previousTasks = new TaskTotals(previous);
+        this.report(TASK_TIME, tasks.runTime - previousTasks.runTime);
+        if (tasks.runs > previousTasks.runs) {
+            this.report(TASK_DELAY, (tasks.startDelay - previousTasks.startDelay) / (tasks.runs - previousTasks.runs));
+        }
+        this.report(SKIPPED_RUNS, tasks.skipped - previousTasks.skipped);
+
+        long hits = stats.getPluginCacheHits() - previous.getPluginCacheHits();
+        long misses = stats.getPluginCacheMisses() - previous.getPluginCacheMisses();
+        this.report(PLUGIN_LOOKUPS, misses);
+        if (hits + misses > 0) {
+            this.report(PLUGIN_CACHE_HIT_RATE, 100.0 * hits / (hits + misses));
+        }
+
+        long uploads = stats.getUploads() - previous.getUploads();
+        if (uploads > 0) {
+            this.report(UPLOAD_LATENCY, millis(stats.getUploadTime().toNanos() - previous.getUploadTime().toNanos()) / uploads);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static final class TaskTotals {
+        // in milliseconds, like the histograms
+        private double runTime;
+        private double startDelay;
+        private long runs;
+        private long skipped;
+
+        private TaskTotals(FlareStats stats) {
+            for (IntervalManager.TaskStats task : stats.getTaskStats()) {
+                this.runTime += task.getRunTime().getSum();
+                this.startDelay += task.getStartDelay().getSum();
+                this.runs += task.getStartDelay().getCount();
+                this.skipped += task.getSkippedRuns();
+            }
+        }
+    }
+}
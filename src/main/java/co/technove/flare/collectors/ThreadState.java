@@ -1,53 +1,164 @@
 package co.technove.flare.collectors;
 
 import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.util.IntervalManager;
+import org.jetbrains.annotations.Nullable;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Tracks which threads have been active recently, so only those are profiled. Threads are enumerated through their
+ * thread group and judged by how much CPU time they used since the previous scan, which unlike taking stack traces
+ * needs no safepoint. If the JVM can not measure thread CPU time, or measuring it is turned off, threads are judged by
+ * their top frame instead, read for all of them at once: one waiting, sleeping or blocked in I/O counts as idle even
+ * though threads blocked in native code are runnable. The same goes for threads seen for the first time, as there is
+ * no CPU time to compare against yet. Measuring is only turned on if asked for, since it is a JVM wide setting.
+ * <p>
+ * {@link Listener Listeners} are told whenever a thread becomes active or inactive, so the set of profiled threads can
+ * follow along during a window.
+ */
 public class ThreadState implements Runnable {
 
+    // using less CPU time than this over a scan counts as idle, so threads that just wake up to poll stay inactive
+    private static final long ACTIVE_CPU_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
     private final Map<Thread, ThreadValues> activeThreads = new WeakHashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported = isCpuTimeSupported(this.threadBean);
+    private final boolean bulkCpuTime = this.cpuTimeSupported && supportsBulkCpuTime(this.threadBean);
+    private final boolean enableCpuTime;
+    private Thread[] threads = new Thread[64];
+    // exactly as long as the enumerated threads, since the bulk queries take the whole array
+    private long[] ids = new long[0];
+    private long[] cpuTimes = new long[64];
+    private long scan;
+    private int activeCount;
+    private long activated;
+    private long deactivated;
+
+    /**
+     * @param enableCpuTime whether to turn on thread CPU time measurement for the whole JVM if it is off
+     */
+    public ThreadState(boolean enableCpuTime) {
+        this.enableCpuTime = enableCpuTime;
+    }
 
     public void start(FlareInternal flare) {
+        if (this.enableCpuTime && this.cpuTimeSupported) {
+            try {
+                if (!this.threadBean.isThreadCpuTimeEnabled()) {
+                    this.threadBean.setThreadCpuTimeEnabled(true);
+                }
+            } catch (UnsupportedOperationException | SecurityException e) {
+                // fall back to thread states
+            }
+        }
         // since this runs once a second, a thread is active if it doesn't sleep at least once over 64s
-        flare.getIntervalManager().schedule(this, Duration.ofSeconds(1));
+        flare.getIntervalManager().schedule(IntervalManager.Lane.SAMPLING_SUPPORT, this, Duration.ofSeconds(1));
     }
 
     public synchronized void stop() {
         this.activeThreads.clear();
+        this.activeCount = 0;
     }
 
-    public synchronized void run() {
-        Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
-        for (Map.Entry<Thread, StackTraceElement[]> entry : stacks.entrySet()) {
-            StackTraceElement[] stack = entry.getValue();
-            boolean active;
-            if (stack.length > 0) {
-                StackTraceElement head = stack[0];
-                active = !((head.getClassName().equals("jdk.internal.misc.Unsafe") && head.getMethodName().equals("park")) ||
-                        (head.getClassName().equals("java.lang.Object") && head.getMethodName().equals("wait")) ||
-                        (head.getClassName().equals("java.lang.Thread") && head.getMethodName().equals("sleep")) ||
-                        (head.getClassName().equals("io.netty.channel.epoll.Native") && head.getMethodName().equals("epollWait")) ||
-                        (head.getClassName().equals("java.lang.ref.Reference") && head.getMethodName().equals("waitForReferencePendingList")) ||
-                        (head.getClassName().equals("java.io.FileInputStream") || head.getMethodName().equals("read0")));
-            } else {
-                active = false;
+    /**
+     * Adds a listener to be told about threads becoming active or inactive, unless it was added already.
+     */
+    public void addListener(Listener listener) {
+        this.listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    public void run() {
+        List<Thread> activatedThreads = new ArrayList<>();
+        List<Thread> deactivatedThreads = new ArrayList<>();
+        this.scan(activatedThreads, deactivatedThreads);
+
+        // outside of the lock, listeners may well call back in
+        for (Listener listener : this.listeners) {
+            for (Thread thread : activatedThreads) {
+                listener.onActive(thread);
+            }
+            for (Thread thread : deactivatedThreads) {
+                listener.onInactive(thread);
             }
+        }
+    }
 
-            Thread thread = entry.getKey();
-            ThreadValues values = activeThreads.get(thread);
+    private synchronized void scan(List<Thread> activatedThreads, List<Thread> deactivatedThreads) {
+        int count = this.enumerateThreads();
+        if (this.ids.length != count) {
+            this.ids = new long[count];
+        }
+        for (int i = 0; i < count; i++) {
+            this.ids[i] = this.threads[i].getId();
+        }
+        long[] cpuTimes = this.readCpuTimes(count);
+        ThreadInfo[] topFrames = null;
+        this.scan++;
+        for (int i = 0; i < count; i++) {
+            Thread thread = this.threads[i];
+            ThreadValues values = this.activeThreads.get(thread);
             if (values == null) {
                 values = new ThreadValues();
-                activeThreads.put(thread, values);
+                this.activeThreads.put(thread, values);
+            }
+
+            boolean active;
+            if (cpuTimes != null && cpuTimes[i] >= 0 && values.cpuTime >= 0) {
+                active = cpuTimes[i] - values.cpuTime >= ACTIVE_CPU_NANOS;
+            } else {
+                // nothing to compare against, so look at what the thread is doing. With CPU time available this is
+                // only needed in scans that found new threads
+                if (topFrames == null) {
+                    topFrames = this.threadBean.getThreadInfo(this.ids, 1);
+                }
+                active = isBusy(topFrames[i]);
             }
+            values.cpuTime = cpuTimes == null ? -1 : cpuTimes[i];
+            boolean wasActive = values.isActive();
             values.history <<= 1;
             values.history |= active ? 1 : 0;
+            values.scan = this.scan;
+            if (values.isActive() != wasActive) {
+                (wasActive ? deactivatedThreads : activatedThreads).add(thread);
+            }
+        }
+        // don't keep finished threads reachable until the next scan
+        Arrays.fill(this.threads, 0, count, null);
+        this.activeCount = 0;
+        for (Iterator<Map.Entry<Thread, ThreadValues>> it = this.activeThreads.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Thread, ThreadValues> entry = it.next();
+            if (entry.getValue().scan != this.scan) {
+                if (entry.getValue().isActive()) {
+                    deactivatedThreads.add(entry.getKey());
+                }
+                it.remove();
+            } else if (entry.getValue().isActive()) {
+                this.activeCount++;
+            }
         }
-        activeThreads.keySet().retainAll(stacks.keySet());
+
+        this.activated += activatedThreads.size();
+        this.deactivated += deactivatedThreads.size();
     }
 
     public synchronized Set<Thread> getActiveThreads() {
@@ -60,12 +171,128 @@ public class ThreadState implements Runnable {
         return set;
     }
 
+    /**
+     * Returns how many threads are currently active.
+     */
+    public synchronized int getActiveThreadCount() {
+        return this.activeCount;
+    }
+
+    /**
+     * Returns how many times a thread became active, including newly started threads.
+     */
+    public synchronized long getActivatedThreads() {
+        return this.activated;
+    }
+
+    /**
+     * Returns how many times a thread became inactive, including active threads that finished.
+     */
+    public synchronized long getDeactivatedThreads() {
+        return this.deactivated;
+    }
+
+    private int enumerateThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        while (true) {
+            int count = root.enumerate(this.threads, true);
+            // a full array may have missed threads
+            if (count < this.threads.length) {
+                return count;
+            }
+            this.threads = new Thread[this.threads.length * 2];
+        }
+    }
+
+    /**
+     * Returns the CPU time of each enumerated thread, -1 for threads that are gone, or null if it can't be measured.
+     */
+    private long @Nullable [] readCpuTimes(int count) {
+        if (!this.cpuTimeSupported || !this.threadBean.isThreadCpuTimeEnabled()) {
+            return null;
+        }
+        if (this.cpuTimes.length < count) {
+            this.cpuTimes = new long[this.threads.length];
+        }
+        if (this.bulkCpuTime) {
+            return ((com.sun.management.ThreadMXBean) this.threadBean).getThreadCpuTime(this.ids);
+        }
+        for (int i = 0; i < count; i++) {
+            this.cpuTimes[i] = this.threadBean.getThreadCpuTime(this.ids[i]);
+        }
+        return this.cpuTimes;
+    }
+
+    /**
+     * Returns whether the thread is doing something other than waiting, judged by its top frame. Threads that are
+     * gone or have no frames count as idle.
+     */
+    private static boolean isBusy(@Nullable ThreadInfo info) {
+        if (info == null || info.getStackTrace().length == 0) {
+            return false;
+        }
+        StackTraceElement head = info.getStackTrace()[0];
+        String method = head.getMethodName();
+        switch (head.getClassName()) {
+            case "jdk.internal.misc.Unsafe":
+                return !method.equals("park");
+            case "java.lang.Object":
+                return !method.equals("wait") && !method.equals("wait0");
+            case "java.lang.Thread":
+                return !method.equals("sleep") && !method.equals("sleep0");
+            case "java.lang.ref.Reference":
+                return !method.equals("waitForReferencePendingList");
+            case "io.netty.channel.epoll.Native":
+                return !method.startsWith("epollWait");
+            case "sun.nio.ch.Net":
+                return !method.equals("poll") && !method.equals("accept");
+            case "sun.nio.ch.EPoll":
+            case "sun.nio.ch.WEPoll":
+                return !method.equals("wait");
+            case "sun.nio.ch.KQueue":
+                return !method.equals("poll");
+            case "java.io.FileInputStream":
+                return false;
+            default:
+                // blocking socket and pipe reads
+                return !method.equals("read0");
+        }
+    }
+
+    private static boolean isCpuTimeSupported(ThreadMXBean bean) {
+        try {
+            return bean.isThreadCpuTimeSupported();
+        } catch (UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean supportsBulkCpuTime(ThreadMXBean bean) {
+        try {
+            return bean instanceof com.sun.management.ThreadMXBean;
+        } catch (LinkageError e) {
+            // jdk.management is not available
+            return false;
+        }
+    }
+
     private static class ThreadValues {
         private long history = 0;
+        private long cpuTime = -1;
+        private long scan;
 
         public boolean isActive() {
             return this.history != 0;
         }
     }
 
+    public interface Listener {
+        void onActive(Thread thread);
+
+        void onInactive(Thread thread);
+    }
+
 }
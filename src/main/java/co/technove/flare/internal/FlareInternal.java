@@ -1,8 +1,9 @@
 package co.technove.flare.internal;
 
 import co.technove.flare.Flare;
-import co.technove.flare.FlareAuth;
 import co.technove.flare.FlareBuilder;
+import co.technove.flare.FlareStats;
+import co.technove.flare.collectors.FlareOverheadCollector;
 import co.technove.flare.collectors.ThreadState;
 import co.technove.flare.exceptions.UserReportableException;
 import co.technove.flare.internal.profiling.AsyncProfilerIntegration;
@@ -15,6 +16,7 @@ import co.technove.flare.live.EventCollector;
 import co.technove.flare.live.LiveCollector;
 import co.technove.flare.live.category.GraphCategory;
 import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.sink.ProfileSink;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -27,27 +29,38 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
 public class FlareInternal implements Flare {
 
+    private static final int PLUGIN_CACHE_LIMIT = 1 << 16;
+
     private static boolean initialized = false;
     private final @NotNull ProfileType profileType;
     private final boolean profileMemory;
+    private final boolean continuousProfiling;
+    private final int parserThreads;
+    private final int deltaKeyframeInterval;
     private final @NotNull Duration interval;
     private final @NotNull Map<String, String> files;
     private final @NotNull Map<String, String> versions;
-    private final @NotNull FlareAuth auth;
+    private final @NotNull List<ProfileSink> sinks;
     private final List<LiveCollector> liveCollectors = new ArrayList<>();
     private final List<EventCollector> eventCollectors = new ArrayList<>();
     private final @Nullable Function<String, Optional<String>> pluginForClass;
-    private final @NotNull ThreadState threadState = new ThreadState();
-    private final @NotNull IntervalManager intervalManager = new IntervalManager();
+    private final Map<String, Optional<String>> pluginCache = new ConcurrentHashMap<>();
+    private final @NotNull ThreadState threadState;
+    private final @NotNull FlareMetrics metrics = new FlareMetrics();
+    private final @NotNull IntervalManager intervalManager = new IntervalManager(this.metrics);
     private final @NotNull Set<GraphCategory> defaultCategories;
     private final @Nullable FlareBuilder.HardwareBuilder hardwareBuilder;
     private final @Nullable FlareBuilder.OperatingSystemBuilder operatingSystemBuilder;
     private @Nullable ProfileController controller;
+    private @Nullable ForkJoinPool parserPool;
     private boolean running = false;
     private boolean ran = false;
     private Long startTime;
@@ -56,21 +69,32 @@ public class FlareInternal implements Flare {
     public FlareInternal(
             @NotNull ProfileType profileType,
             boolean profileMemory,
+            boolean continuousProfiling,
+            int parserThreads,
+            int deltaKeyframeInterval,
+            boolean threadCpuTime,
             @NotNull Duration interval,
             @NotNull Map<String, String> files,
             @NotNull Map<String, String> versions,
             @NotNull Collection<Collector> collectors,
-            @NotNull FlareAuth auth,
+            @NotNull List<ProfileSink> sinks,
             @Nullable Function<String, Optional<String>> pluginForClass,
             @NotNull Set<GraphCategory> defaultCategories,
             @Nullable FlareBuilder.HardwareBuilder builder,
             @Nullable FlareBuilder.OperatingSystemBuilder operatingSystemBuilder) {
         this.profileType = Objects.requireNonNull(profileType, "Profile type must be defined");
         this.profileMemory = profileMemory;
+        this.continuousProfiling = continuousProfiling;
+        this.parserThreads = Math.min(parserThreads, Runtime.getRuntime().availableProcessors());
+        this.deltaKeyframeInterval = deltaKeyframeInterval;
+        this.threadState = new ThreadState(threadCpuTime);
         this.interval = Objects.requireNonNull(interval, "Interval must be defined");
         this.files = files;
         this.versions = versions;
-        this.auth = Objects.requireNonNull(auth, "Auth must be defined");
+        if (sinks.isEmpty()) {
+            throw new IllegalArgumentException("At least one sink or auth must be defined");
+        }
+        this.sinks = List.copyOf(sinks);
         this.pluginForClass = pluginForClass;
         this.defaultCategories = defaultCategories;
         this.hardwareBuilder = builder;
@@ -85,6 +109,7 @@ public class FlareInternal implements Flare {
                 throw new RuntimeException("Unknown collector type");
             }
         }
+        this.liveCollectors.add(new FlareOverheadCollector());
     }
 
     public static List<String> initialize() throws InitializationException {
@@ -139,7 +164,29 @@ public class FlareInternal implements Flare {
             LockSupport.parkNanos(1000L);
         }
 
-        this.controller = new ProfileController(this, this.liveCollectors, this.eventCollectors);
+        if (this.parserThreads > 1) {
+            this.parserPool = new ForkJoinPool(this.parserThreads, pool -> {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onTermination(Throwable exception) {
+                        metrics.finished();
+                        super.onTermination(exception);
+                    }
+                };
+                thread.setName("Flare Parser Worker-" + thread.getPoolIndex());
+                this.metrics.track(thread);
+                return thread;
+            }, null, false);
+        }
+
+        try {
+            this.controller = new ProfileController(this, this.liveCollectors, this.eventCollectors);
+        } catch (UserReportableException | RuntimeException e) {
+            if (this.parserPool != null) {
+                this.parserPool.shutdown();
+            }
+            throw e;
+        }
         this.running = true;
         this.startTime = System.currentTimeMillis();
     }
@@ -155,10 +202,13 @@ public class FlareInternal implements Flare {
         this.intervalManager.cancel();
         this.threadState.stop();
         this.controller.end();
+        if (this.parserPool != null) {
+            this.parserPool.shutdown();
+        }
     }
 
-    public @NotNull FlareAuth getAuth() {
-        return auth;
+    public @NotNull List<ProfileSink> getSinks() {
+        return sinks;
     }
 
     public @NotNull ProfileType getProfileType() {
@@ -169,6 +219,18 @@ public class FlareInternal implements Flare {
         return profileMemory;
     }
 
+    public @Nullable ForkJoinPool getParserPool() {
+        return parserPool;
+    }
+
+    public boolean isContinuousProfiling() {
+        return continuousProfiling;
+    }
+
+    public int getDeltaKeyframeInterval() {
+        return deltaKeyframeInterval;
+    }
+
     public @NotNull Duration getInterval() {
         return interval;
     }
@@ -191,7 +253,7 @@ public class FlareInternal implements Flare {
         if (this.controller == null) {
             return Optional.empty();
         }
-        return Optional.of(this.auth.getUri().resolve("/" + this.controller.getId()));
+        return this.controller.getURI();
     }
 
     public @NotNull Map<String, String> getFiles() {
@@ -206,8 +268,35 @@ public class FlareInternal implements Flare {
         return intervalManager;
     }
 
+    /**
+     * Resolves the plugin owning a class, caching the result for the rest of the session. Once the cache is full,
+     * lookups for classes that are not in it go straight to the identifier.
+     */
     public Optional<String> getPluginForClass(String className) {
-        return this.pluginForClass == null ? Optional.empty() : this.pluginForClass.apply(className);
+        if (this.pluginForClass == null) {
+            return Optional.empty();
+        }
+
+        Optional<String> plugin = this.pluginCache.get(className);
+        this.metrics.recordPluginLookup(plugin != null);
+        if (plugin != null) {
+            return plugin;
+        }
+
+        plugin = this.pluginForClass.apply(className);
+        if (this.pluginCache.size() < PLUGIN_CACHE_LIMIT) {
+            this.pluginCache.putIfAbsent(className, plugin);
+        }
+        return plugin;
+    }
+
+    @Override
+    public @NotNull FlareStats getStats() {
+        return this.metrics.snapshot(this.threadState, this.intervalManager);
+    }
+
+    public @NotNull FlareMetrics getMetrics() {
+        return metrics;
     }
 
     public @NotNull ThreadState getThreadState() {
@@ -0,0 +1,188 @@
+package co.technove.flare.internal;
+
+import co.technove.flare.FlareStats;
+import co.technove.flare.collectors.ThreadState;
+import co.technove.flare.internal.util.IntervalManager;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the overhead of a single Flare. Threads Flare starts are created through {@link #newThread} or
+ * {@link #track registered}, so their CPU time and allocations are told apart from the application's and still count
+ * once they have finished. Recording never blocks.
+ */
+public final class FlareMetrics {
+
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder parsedBytes = new LongAdder();
+    private final LongAdder parsedEvents = new LongAdder();
+    private final LongAdder aggregationNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+    private final LongAdder windows = new LongAdder();
+    private final LongAdder uploads = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder uploadNanos = new LongAdder();
+    private final LongAdder droppedValues = new LongAdder();
+    private final LongAdder pluginCacheHits = new LongAdder();
+    private final LongAdder pluginCacheMisses = new LongAdder();
+    private volatile int treeNodes;
+    private volatile int dictionarySize;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.@Nullable ThreadMXBean allocationBean = getAllocationBean(this.threadBean);
+    // guarded by itself, along with the totals of finished threads
+    private final Set<Thread> threads = new HashSet<>();
+    private long finishedCpuNanos;
+    private long finishedAllocatedBytes;
+
+    /**
+     * Creates a thread that counts towards this Flare until it finishes.
+     */
+    public Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(() -> {
+            try {
+                runnable.run();
+            } finally {
+                this.finished();
+            }
+        }, name);
+        this.track(thread);
+        return thread;
+    }
+
+    /**
+     * Counts a thread created elsewhere towards this Flare. The thread must call {@link #finished()} right before it
+     * exits, or what it used is lost.
+     */
+    public void track(Thread thread) {
+        synchronized (this.threads) {
+            this.threads.add(thread);
+        }
+    }
+
+    /**
+     * Adds what the calling thread used to the totals of finished threads and stops tracking it.
+     */
+    public void finished() {
+        Thread thread = Thread.currentThread();
+        synchronized (this.threads) {
+            if (this.threads.remove(thread)) {
+                this.finishedCpuNanos += this.cpuTime(thread);
+                this.finishedAllocatedBytes += this.allocatedBytes(thread);
+            }
+        }
+    }
+
+    public void recordParse(long nanos, long bytes, long events, long aggregation, int nodes) {
+        this.parseNanos.add(nanos);
+        this.parsedBytes.add(bytes);
+        this.parsedEvents.add(events);
+        this.aggregationNanos.add(aggregation);
+        this.treeNodes = nodes;
+    }
+
+    public void recordEncode(long nanos, long bytes, int dictionary) {
+        this.encodeNanos.add(nanos);
+        this.encodedBytes.add(bytes);
+        this.windows.increment();
+        this.dictionarySize = dictionary;
+    }
+
+    public void recordUpload(long nanos, long bytes) {
+        this.uploadNanos.add(nanos);
+        this.uploadedBytes.add(bytes);
+        this.uploads.increment();
+    }
+
+    public void recordDroppedValues(long values) {
+        this.droppedValues.add(values);
+    }
+
+    public void recordPluginLookup(boolean cached) {
+        (cached ? this.pluginCacheHits : this.pluginCacheMisses).increment();
+    }
+
+    /**
+     * Returns the counters along with the figures of the parts of Flare that keep their own.
+     */
+    public FlareStats snapshot(ThreadState threadState, IntervalManager intervalManager) {
+        boolean cpuTime = isCpuTimeEnabled(this.threadBean);
+        boolean allocations = this.allocationBean != null && isAllocatedMemoryEnabled(this.allocationBean);
+        long threadCpuNanos;
+        long threadAllocatedBytes;
+        synchronized (this.threads) {
+            threadCpuNanos = this.finishedCpuNanos;
+            threadAllocatedBytes = this.finishedAllocatedBytes;
+            for (Iterator<Thread> it = this.threads.iterator(); it.hasNext(); ) {
+                Thread thread = it.next();
+                if (thread.getState() == Thread.State.TERMINATED) {
+                    // exited without reporting in, nothing can be read from it anymore
+                    it.remove();
+                    continue;
+                }
+                threadCpuNanos += this.cpuTime(thread);
+                threadAllocatedBytes += this.allocatedBytes(thread);
+            }
+        }
+
+        return new FlareStats(this.parseNanos.sum(), this.parsedBytes.sum(), this.parsedEvents.sum(), this.aggregationNanos.sum(),
+                this.treeNodes, this.dictionarySize, this.encodeNanos.sum(), this.encodedBytes.sum(), this.windows.sum(),
+                this.uploads.sum(), this.uploadedBytes.sum(), this.uploadNanos.sum(), this.droppedValues.sum(),
+                this.pluginCacheHits.sum(), this.pluginCacheMisses.sum(),
+                threadState.getActiveThreadCount(), threadState.getActivatedThreads(), threadState.getDeactivatedThreads(),
+                intervalManager.getTaskStats(), cpuTime ? threadCpuNanos : -1, allocations ? threadAllocatedBytes : -1);
+    }
+
+    private long cpuTime(Thread thread) {
+        try {
+            return Math.max(0, this.threadBean.getThreadCpuTime(thread.getId()));
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    private long allocatedBytes(Thread thread) {
+        if (this.allocationBean == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, this.allocationBean.getThreadAllocatedBytes(thread.getId()));
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isCpuTimeEnabled(ThreadMXBean bean) {
+        try {
+            return bean.isThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static boolean isAllocatedMemoryEnabled(com.sun.management.ThreadMXBean bean) {
+        try {
+            return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static com.sun.management.@Nullable ThreadMXBean getAllocationBean(ThreadMXBean bean) {
+        try {
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return (com.sun.management.ThreadMXBean) bean;
+            }
+        } catch (LinkageError e) {
+            // jdk.management is not available
+        }
+        return null;
+    }
+}
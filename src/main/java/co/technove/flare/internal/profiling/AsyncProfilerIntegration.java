@@ -1,16 +1,19 @@
 package co.technove.flare.internal.profiling;
 
+import co.technove.flare.collectors.ThreadState;
 import co.technove.flare.internal.FlareInternal;
-import co.technove.flare.internal.profiling.dictionary.JavaMethod;
 import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
 import co.technove.flare.internal.profiling.dictionary.TypeValue;
 import co.technove.flare.proto.ProfilerFileProto;
 import one.jfr.Dictionary;
+import one.jfr.JfrChunk;
 import one.jfr.JfrReader;
 import one.jfr.StackTrace;
-import one.jfr.event.Event;
 import one.jfr.event.EventAggregator;
+import one.jfr.event.EventRecord;
 import one.profiler.AsyncProfiler;
+import one.proto.Proto;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,19 +25,36 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 public class AsyncProfilerIntegration {
 
+    private static final Logger logger = Logger.getLogger("Flare:AsyncProfilerIntegration");
     private static final int ALLOC_INTERVAL = 8192;
+    private static final ThreadState.Listener THREAD_LISTENER = new ThreadState.Listener() {
+        @Override
+        public void onActive(Thread thread) {
+            filterThread(thread, true);
+        }
+
+        @Override
+        public void onInactive(Thread thread) {
+            filterThread(thread, false);
+        }
+    };
 
     private static boolean initialized = false;
 
     private static boolean profiling = false;
+    private static boolean supportsProfilingMemory = false;
     private static AsyncProfiler profiler;
-    private static Path tempdir = null;
-    private static String profileFile = null;
+    private static Path profileFile = null;
     private static long interval;
+    private static ThreadState threadState;
 
     public static List<String> init() throws InitializationException {
         if (initialized) {
@@ -84,7 +104,6 @@ public class AsyncProfilerIntegration {
         profiler = AsyncProfiler.getInstance(tmp.toAbsolutePath().toString());
         initialized = true;
 
-        boolean supportsProfilingMemory = false;
         try {
             supportsProfilingMemory = profiler.execute("check,alloc").trim().equals("OK");
         } catch (IOException | IllegalStateException e) {
@@ -109,141 +128,439 @@ public class AsyncProfilerIntegration {
         }
         AsyncProfilerIntegration.interval = flare.getInterval().toMillis();
 
-        tempdir = Files.createTempDirectory("flare");
-        profileFile = tempdir.resolve("flare.jfr").toString();
+        startRecording(flare);
+        profiling = true;
+        threadState = flare.getThreadState();
+        threadState.addListener(THREAD_LISTENER);
+    }
 
-        boolean supportsProfilingMemory = false;
-        try {
-            supportsProfilingMemory = profiler.execute("check,alloc").trim().equals("OK");
-        } catch (IOException | IllegalStateException e) {
+    // keeps the profiled threads in line with the active ones during a window, each recording starts with the
+    // threads active at that point
+    private synchronized static void filterThread(Thread thread, boolean active) {
+        if (!profiling) {
+            return;
+        }
+        if (active) {
+            profiler.addThread(thread);
+        } else {
+            profiler.removeThread(thread);
         }
+    }
+
+    synchronized static boolean isProfiling() {
+        return profiling;
+    }
+
+    // each recording gets its own file, which is handed over to the caller once the recording is stopped
+    private static void startRecording(FlareInternal flare) throws IOException {
+        profileFile = Files.createTempFile("flare", ".jfr");
 
         String alloc = supportsProfilingMemory && flare.isProfilingMemory() ? "alloc=" + ALLOC_INTERVAL + "," : "";
-        String returned = execute("start,event=" + flare.getProfileType().getInternalName() + "," + alloc + "interval=" + interval + "ms,threads,filter,jstackdepth=1024,jfr,file=" + profileFile);
+        String returned;
+        try {
+            returned = execute("start,event=" + flare.getProfileType().getInternalName() + "," + alloc + "interval=" + interval + "ms,threads,filter,jstackdepth=1024,jfr,file=" + profileFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(profileFile);
+            throw e;
+        }
         for (Thread activeThread : flare.getThreadState().getActiveThreads()) {
             profiler.addThread(activeThread);
         }
         if ((!returned.contains("Started ") || !returned.contains(" profiling")) && !returned.contains("Profiling started")) {
+            Files.deleteIfExists(profileFile);
             throw new IOException("Failed to start flare: " + returned.trim());
         }
-        profiling = true;
     }
 
-    private static FinalProfileData getProfileData(FlareInternal flare, JfrReader reader, ProfileType type) {
-        Map<String, ProfileSection> threadsMap = new HashMap<>();
-        Dictionary<TypeValue> methodNames = new Dictionary<>(); // method names cache
+    /**
+     * Stops the profiler and returns the finished recording, which the caller is responsible for deleting.
+     */
+    synchronized static Optional<Path> stopProfiling() {
+        if (!profiling) {
+            return Optional.empty();
+        }
+        endSession();
+        try {
+            profiler.stop();
+        } catch (Throwable t) {
+            deleteRecording(profileFile);
+            throw t;
+        }
+        return Optional.of(profileFile);
+    }
+
+    /**
+     * Ends the current window without ending the profiling session. The recording is restarted into a new file
+     * straight after being stopped, so the finished file can be parsed while the profiler is already sampling the
+     * next window. If the restart fails, the session is ended and the next call to {@link #startProfiling} begins a
+     * new one.
+     */
+    synchronized static Optional<Path> rotateProfiling(FlareInternal flare) {
+        if (!profiling) {
+            return Optional.empty();
+        }
+        Path finishedFile = profileFile;
+        try {
+            profiler.stop();
+        } catch (Throwable t) {
+            endSession();
+            deleteRecording(finishedFile);
+            throw t;
+        }
+
+        try {
+            startRecording(flare);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to restart the profiler, profiling has stopped", e);
+            endSession();
+        }
+        return Optional.of(finishedFile);
+    }
+
+    private static void endSession() {
+        profiling = false;
+        if (threadState != null) {
+            threadState.removeListener(THREAD_LISTENER);
+            threadState = null;
+        }
+    }
 
-        EventAggregator agg = new EventAggregator(true, true);
-        int totalSamples = 0;
-        for (Event event; (event = reader.readEvent(type.getEventClass())) != null; ) {
-            agg.collect(event);
-            totalSamples++;
+    static void deleteRecording(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
         }
+    }
+
+    /**
+     * Parses and aggregates a finished recording. This does not touch the profiler, so it is safe to call while the
+     * next window is being recorded.
+     */
+    static ParsedProfile readProfile(FlareInternal flare, Path file, ProfileDictionary dictionary) throws IOException {
+        return readProfile(flare, file, dictionary, flare.getParserPool());
+    }
+
+    /**
+     * Parses a recording like {@link #readProfile(FlareInternal, Path, ProfileDictionary)}, decoding the chunks on the
+     * given pool, or on the calling thread if there is none.
+     */
+    static ParsedProfile readProfile(FlareInternal flare, Path file, ProfileDictionary dictionary, @Nullable ForkJoinPool pool) throws IOException {
+        long bytes = Files.size(file);
+        long parseNanos = 0;
+        long aggregationNanos = 0;
+        try (JfrReader reader = new JfrReader(file.toString())) {
+            ProfileAggregation cpu = new ProfileAggregation(flare, flare.getProfileType(), dictionary);
+            ProfileAggregation alloc = new ProfileAggregation(flare, ProfileType.ALLOC, dictionary);
+
+            // a single pass over each chunk feeds every aggregation, the record type decides where an event goes
+            for (int chunkIndex = 0; chunkIndex < reader.getChunkCount(); chunkIndex++) {
+                long start = System.nanoTime();
+                JfrChunk chunk = reader.readChunk(chunkIndex);
+                if (pool == null) {
+                    collectEvents(chunk, cpu, alloc);
+                } else {
+                    collectEventsParallel(pool, chunk, cpu, alloc);
+                }
+                long parsed = System.nanoTime();
+                parseNanos += parsed - start;
 
-        agg.forEach((event, value, samples) -> {
-            StackTrace stackTrace = reader.stackTraces.get(event.stackTraceId);
-            if (stackTrace == null) {
-                return;
+                MethodIds methodIds = new MethodIds(chunk, dictionary);
+                cpu.resolve(chunk, methodIds);
+                alloc.resolve(chunk, methodIds);
+                aggregationNanos += System.nanoTime() - parsed;
             }
 
-            long[] methods = stackTrace.methods;
-            byte[] types = stackTrace.types;
+            FinalProfileData cpuData = cpu.finish();
+            FinalProfileData allocData = alloc.finish();
+            flare.getMetrics().recordParse(parseNanos, bytes, (long) cpuData.samples + allocData.samples, aggregationNanos, cpuData.nodes() + allocData.nodes());
+            return new ParsedProfile(cpuData, allocData, reader.durationNanos);
+        }
+    }
 
-            String thread = reader.threads.get(event.tid);
-            if (thread.startsWith("[tid=")) {
-                return;
+    private static void collectEvents(JfrChunk chunk, ProfileAggregation... aggregations) {
+        EventRecord record = new EventRecord();
+        while (chunk.readEvent(record)) {
+            for (ProfileAggregation aggregation : aggregations) {
+                aggregation.collect(record);
             }
+        }
+    }
 
-            ProfileSection section = null;
-            for (int i = methods.length - 1; i >= 0; i--) {
-                TypeValue method = JavaMethod.getMethodName(methods[i], types[i], reader, methodNames);
-                if (section == null) {
-                    section = threadsMap.computeIfAbsent(thread, t -> new ProfileSection(flare, method));
-                } else {
-                    section = section.getSection(method);
+    // decodes slices of the chunk on the pool into per-worker aggregations, which are merged in slice order
+    private static void collectEventsParallel(ForkJoinPool pool, JfrChunk chunk, ProfileAggregation... aggregations) {
+        int[] bounds = chunk.splitEvents(pool.getParallelism());
+        List<ForkJoinTask<ProfileAggregation[]>> tasks = new ArrayList<>(bounds.length - 1);
+        for (int i = 0; i < bounds.length - 1; i++) {
+            JfrChunk slice = chunk.slice(bounds[i], bounds[i + 1]);
+            tasks.add(pool.submit(() -> {
+                ProfileAggregation[] partials = new ProfileAggregation[aggregations.length];
+                for (int j = 0; j < partials.length; j++) {
+                    partials[j] = aggregations[j].newPartial();
                 }
+                collectEvents(slice, partials);
+                return partials;
+            }));
+        }
+
+        for (ForkJoinTask<ProfileAggregation[]> task : tasks) {
+            ProfileAggregation[] partials = task.join();
+            for (int j = 0; j < partials.length; j++) {
+                aggregations[j].merge(partials[j]);
             }
+        }
+    }
 
-            if (section != null) {
-                section.setSamples(Math.toIntExact(samples));
-                section.setTimeTakenNs(type == ProfileType.ALLOC ? value : value * interval);
+    /**
+     * Encodes a parsed window as an {@code AirplaneProfileFile} into the buffer, replacing its contents. If a previous
+     * window is given, the trees are delta encoded against it and only what changed is included.
+     * <p>
+     * The output is the same as serializing the generated message, but every size is known before anything is
+     * written, so the trees go straight into the buffer without building a message per node.
+     *
+     * @return the method dictionary slice written into the window
+     */
+    static ProfilerFileProto.MethodDictionarySlice encodeProfile(FlareInternal flare, ParsedProfile profile, @Nullable ParsedProfile previous, long sequence, ProfileDictionary dictionary, Proto out) {
+        FinalProfileData cpuData = profile.cpuData;
+        FinalProfileData allocData = profile.allocData;
+
+        List<String> timeThreads = new ArrayList<>(cpuData.threads.size());
+        List<CallTree.Encoded> timeTrees = new ArrayList<>(cpuData.threads.size());
+        int[] timeSizes = new int[cpuData.threads.size()];
+        int v2Size = 0;
+        for (Map.Entry<String, CallTree> entry : cpuData.threads.entrySet()) {
+            CallTree previousTree = previous == null ? null : previous.cpuData.threads.get(entry.getKey());
+            CallTree.Encoded tree = entry.getValue().encodeTime(previousTree, flare, dictionary);
+            int size = stringSize(entry.getKey()) + uint64Size(entry.getValue().getTotal(CallTree.ROOT)) + uint32Size(cpuData.samples) + tree.getSize();
+            timeSizes[timeThreads.size()] = size;
+            timeThreads.add(entry.getKey());
+            timeTrees.add(tree);
+            v2Size += messageSize(size);
+        }
+        List<String> memoryThreads = new ArrayList<>(allocData.threads.size());
+        List<CallTree.Encoded> memoryTrees = new ArrayList<>(allocData.threads.size());
+        int[] memorySizes = new int[allocData.threads.size()];
+        for (Map.Entry<String, CallTree> entry : allocData.threads.entrySet()) {
+            CallTree previousTree = previous == null ? null : previous.allocData.threads.get(entry.getKey());
+            CallTree.Encoded tree = entry.getValue().encodeMemory(previousTree, flare, dictionary);
+            int size = stringSize(entry.getKey()) + uint64Size(entry.getValue().getTotal(CallTree.ROOT)) + tree.getSize();
+            memorySizes[memoryThreads.size()] = size;
+            memoryThreads.add(entry.getKey());
+            memoryTrees.add(tree);
+            v2Size += messageSize(size);
+        }
+        List<String> removedTimeThreads = new ArrayList<>();
+        List<String> removedMemoryThreads = new ArrayList<>();
+        if (previous != null) {
+            for (String thread : previous.cpuData.threads.keySet()) {
+                if (!cpuData.threads.containsKey(thread)) {
+                    removedTimeThreads.add(thread);
+                    v2Size += 1 + Proto.sizeOfString(thread);
+                }
+            }
+            for (String thread : previous.allocData.threads.keySet()) {
+                if (!allocData.threads.containsKey(thread)) {
+                    removedMemoryThreads.add(thread);
+                    v2Size += 1 + Proto.sizeOfString(thread);
+                }
             }
-        });
+        }
+        ProfilerFileProto.MethodDictionarySlice dictionarySlice = dictionary.toProto();
+        byte[] slice = dictionarySlice.toByteArray();
+        v2Size += messageSize(slice.length) + uint64Size(sequence) + (previous != null ? 2 : 0);
+
+        long samples = Math.max(cpuData.samples, allocData.samples);
+        long timeMs = profile.durationNanos / 1000000;
+
+        out.reset();
+        // info
+        out.header(1, uint64Size(samples) + uint64Size(timeMs));
+        if (samples != 0) {
+            out.field(1, samples);
+        }
+        if (timeMs != 0) {
+            out.field(2, timeMs);
+        }
+        // data, with a blank memory profile since we use the v2 fields now
+        out.header(2, 2);
+        out.header(2, 0);
+
+        out.header(6, v2Size);
+        out.field(1, slice);
+        for (int i = 0; i < timeThreads.size(); i++) {
+            out.header(2, timeSizes[i]);
+            if (!timeThreads.get(i).isEmpty()) {
+                out.field(1, timeThreads.get(i));
+            }
+            long time = cpuData.threads.get(timeThreads.get(i)).getTotal(CallTree.ROOT);
+            if (time != 0) {
+                out.field(2, time);
+            }
+            if (cpuData.samples != 0) {
+                out.field(3, cpuData.samples);
+            }
+            timeTrees.get(i).writeTo(out);
+        }
+        for (int i = 0; i < memoryThreads.size(); i++) {
+            out.header(3, memorySizes[i]);
+            if (!memoryThreads.get(i).isEmpty()) {
+                out.field(1, memoryThreads.get(i));
+            }
+            long bytes = allocData.threads.get(memoryThreads.get(i)).getTotal(CallTree.ROOT);
+            if (bytes != 0) {
+                out.field(2, bytes);
+            }
+            memoryTrees.get(i).writeTo(out);
+        }
+        if (sequence != 0) {
+            out.field(4, sequence);
+        }
+        if (previous != null) {
+            out.field(5, true);
+        }
+        for (String thread : removedTimeThreads) {
+            out.field(6, thread);
+        }
+        for (String thread : removedMemoryThreads) {
+            out.field(7, thread);
+        }
+        return dictionarySlice;
+    }
 
-        reader.resetRead(); // needed to read more events later
+    // sizes of fields that proto3 leaves out when they have the default value
 
-        return new FinalProfileData(threadsMap, totalSamples);
+    private static int stringSize(String value) {
+        return value.isEmpty() ? 0 : 1 + Proto.sizeOfString(value);
     }
 
-    synchronized static Optional<ProfilerFileProto.AirplaneProfileFile.Builder> stopProfiling(FlareInternal flare, ProfileDictionary dictionary) {
-        if (!profiling) {
-            return Optional.empty();
+    private static int uint32Size(int value) {
+        return value == 0 ? 0 : 1 + Proto.sizeOfInt(value);
+    }
+
+    private static int uint64Size(long value) {
+        return value == 0 ? 0 : 1 + Proto.sizeOfLong(value);
+    }
+
+    private static int messageSize(int size) {
+        return 1 + Proto.sizeOfInt(size) + size;
+    }
+
+    static final class ParsedProfile {
+        private final FinalProfileData cpuData;
+        private final FinalProfileData allocData;
+        private final long durationNanos;
+
+        ParsedProfile(FinalProfileData cpuData, FinalProfileData allocData, long durationNanos) {
+            this.cpuData = cpuData;
+            this.allocData = allocData;
+            this.durationNanos = durationNanos;
         }
-        try {
-            profiler.stop();
-        } catch (Throwable t) {
-            profiling = false;
-            throw t;
+    }
+
+    /**
+     * Resolves the method ids of a chunk to their index in the profile dictionary, once per method and chunk.
+     */
+    private static final class MethodIds {
+        private final JfrChunk chunk;
+        private final ProfileDictionary dictionary;
+        private final Dictionary<TypeValue> methodNames = new Dictionary<>(); // method names cache
+        private final Dictionary<Integer> indices = new Dictionary<>();
+
+        private MethodIds(JfrChunk chunk, ProfileDictionary dictionary) {
+            this.chunk = chunk;
+            this.dictionary = dictionary;
         }
 
-        try (JfrReader reader = new JfrReader(profileFile)) {
-            FinalProfileData cpuData = getProfileData(flare, reader, flare.getProfileType());
-            FinalProfileData allocData = getProfileData(flare, reader, ProfileType.ALLOC);
-
-            return Optional.of(ProfilerFileProto.AirplaneProfileFile.newBuilder()
-                    .setInfo(ProfilerFileProto.AirplaneProfileFile.ProfileInfo.newBuilder()
-                            .setSamples(Math.max(cpuData.samples, allocData.samples))
-                            .setTimeMs(reader.durationNanos / 1000000)
-                            .build())
-                    .setData(ProfilerFileProto.AirplaneProfileFile.ProfileData.newBuilder()
-                            .setMemoryProfile(ProfilerFileProto.MemoryProfile.newBuilder()) // add blank profile, since we use the indiviudal fields now
-                    )
-                    .setV2(ProfilerFileProto.AirplaneProfileFile.V2Data.newBuilder()
-                            .addAllTimeProfile(cpuData.threads
-                                    .entrySet()
-                                    .stream()
-                                    .map(entry -> ProfilerFileProto.TimeProfileV2.newBuilder()
-                                            .setThread(entry.getKey())
-                                            .setTime(entry.getValue().calculateTimeTaken())
-                                            .setSamples(cpuData.samples)
-                                            .addAllChildren(entry.getValue().toTimeChild(dictionary).getChildrenList())
-                                            .build())
-                                    .collect(Collectors.toList()))
-
-                            .addAllMemoryProfile(allocData.threads
-                                    .entrySet()
-                                    .stream()
-                                    .map(entry -> ProfilerFileProto.MemoryProfileV2.newBuilder()
-                                            .setThread(entry.getKey())
-                                            .setBytes(entry.getValue().calculateTimeTaken())
-                                            .addAllChildren(entry.getValue().toMemoryProfile(dictionary).getChildrenList())
-                                            .build())
-                                    .collect(Collectors.toList()))
-
-                            .setDictionary(dictionary.toProto())
-                    ));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            profiling = false;
-            try {
-                for (Path path : Files.list(tempdir).collect(Collectors.toList())) {
-                    Files.delete(path);
-                }
-                Files.delete(tempdir);
-            } catch (IOException e) {
+        private int get(long methodId, byte type) {
+            Integer index = this.indices.get(methodId);
+            if (index == null) {
+                index = this.dictionary.getOrAddMethod(TypeValue.getMethodName(methodId, type, this.chunk, this.methodNames));
+                this.indices.put(methodId, index);
             }
+            return index;
+        }
+    }
+
+    /**
+     * Aggregates the events of one profile type. Stack traces are resolved chunk by chunk, since ids are local to
+     * each chunk, into per-thread trees shared by the whole recording.
+     */
+    private static final class ProfileAggregation {
+        private final FlareInternal flare;
+        private final ProfileType type;
+        private final ProfileDictionary dictionary;
+        private final Map<String, CallTree> threads = new HashMap<>();
+        private EventAggregator events = new EventAggregator(true, true);
+        private int samples;
+
+        private ProfileAggregation(FlareInternal flare, ProfileType type, ProfileDictionary dictionary) {
+            this.flare = flare;
+            this.type = type;
+            this.dictionary = dictionary;
+        }
+
+        private void collect(EventRecord record) {
+            if (record.type == this.type.getEventType()) {
+                this.events.collect(record);
+                this.samples++;
+            }
+        }
+
+        private ProfileAggregation newPartial() {
+            return new ProfileAggregation(this.flare, this.type, this.dictionary);
+        }
+
+        private void merge(ProfileAggregation partial) {
+            this.events.merge(partial.events);
+            this.samples += partial.samples;
+        }
+
+        private void resolve(JfrChunk chunk, MethodIds methodIds) {
+            long scale = this.type == ProfileType.ALLOC ? 1 : this.flare.getInterval().toMillis();
+            this.events.forEach((stackTraceId, tid, value, samples) -> {
+                StackTrace stackTrace = chunk.stackTraces.get(stackTraceId);
+                if (stackTrace == null || stackTrace.methods.length == 0) {
+                    return;
+                }
+
+                long[] methods = stackTrace.methods;
+                byte[] types = stackTrace.types;
+
+                String thread = chunk.threads.get(tid);
+                if (thread.startsWith("[tid=")) {
+                    return;
+                }
+
+                // the outermost frame is the thread's entry point, which is not sent
+                CallTree tree = this.threads.computeIfAbsent(thread, t -> new CallTree());
+                int node = CallTree.ROOT;
+                for (int i = methods.length - 2; i >= 0; i--) {
+                    node = tree.child(node, methodIds.get(methods[i], types[i]));
+                }
+                tree.add(node, samples, value * scale);
+            });
+            this.events = new EventAggregator(true, true);
+        }
+
+        private FinalProfileData finish() {
+            return new FinalProfileData(this.threads, this.samples);
         }
     }
 
-    private static final class FinalProfileData {
-        private final Map<String, ProfileSection> threads;
+    static final class FinalProfileData {
+        private final Map<String, CallTree> threads;
         private final int samples;
 
-        private FinalProfileData(
-                Map<String, ProfileSection> threads, int samples) {
+        FinalProfileData(Map<String, CallTree> threads, int samples) {
             this.threads = threads;
             this.samples = samples;
         }
+
+        private int nodes() {
+            int nodes = 0;
+            for (CallTree tree : this.threads.values()) {
+                nodes += tree.size() - 1;
+            }
+            return nodes;
+        }
     }
 }
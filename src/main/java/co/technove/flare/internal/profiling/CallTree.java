@@ -0,0 +1,439 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.profiling.dictionary.JavaMethod;
+import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.internal.profiling.dictionary.TypeValue;
+import one.proto.Proto;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Call tree of a single thread. Nodes are stored in parallel primitive arrays and identified by their index,
+ * methods by their index in the {@link ProfileDictionary}. Node 0 is a synthetic root whose children are the
+ * top-level frames sent for the thread.
+ */
+class CallTree {
+    static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] methods = new int[INITIAL_CAPACITY];
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+    private long[] samples = new long[INITIAL_CAPACITY];
+    private long[] weights = new long[INITIAL_CAPACITY];
+    private long[] totals;
+    private int size = 1;
+
+    // open addressing index from (parent, method) to node, 0 marks a free slot since the root is never a child
+    private long[] indexKeys = new long[INITIAL_CAPACITY * 2];
+    private int[] indexNodes = new int[INITIAL_CAPACITY * 2];
+
+    public CallTree() {
+        this.methods[ROOT] = -1;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the child of {@code parent} for the given method, adding it if it does not exist yet.
+     */
+    public int child(int parent, int method) {
+        long key = indexKey(parent, method);
+        int mask = this.indexNodes.length - 1;
+        int i = indexHash(key) & mask;
+        while (this.indexNodes[i] != 0) {
+            if (this.indexKeys[i] == key) {
+                return this.indexNodes[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (this.size == this.methods.length) {
+            this.grow();
+        }
+        this.totals = null;
+        int node = this.size++;
+        this.methods[node] = method;
+        this.parents[node] = parent;
+        this.firstChildren[node] = 0;
+        this.nextSiblings[node] = this.firstChildren[parent];
+        this.firstChildren[parent] = node;
+
+        this.indexKeys[i] = key;
+        this.indexNodes[i] = node;
+        if (this.size * 2 > this.indexNodes.length) {
+            this.rehash(this.indexNodes.length * 2);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the child of {@code parent} for the given method, or -1 if there is none.
+     */
+    public int find(int parent, int method) {
+        long key = indexKey(parent, method);
+        int mask = this.indexNodes.length - 1;
+        int i = indexHash(key) & mask;
+        while (this.indexNodes[i] != 0) {
+            if (this.indexKeys[i] == key) {
+                return this.indexNodes[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public void add(int node, long samples, long weight) {
+        this.samples[node] += samples;
+        this.weights[node] += weight;
+        this.totals = null;
+    }
+
+    /**
+     * Returns the weight of the node and all its descendants. Totals for the whole tree are computed in a single
+     * pass the first time this is called after a change.
+     */
+    public long getTotal(int node) {
+        if (this.totals == null) {
+            this.totals = this.computeTotals();
+        }
+        return this.totals[node];
+    }
+
+    // children are always added after their parent, so walking backwards visits every node before its parent
+    private long[] computeTotals() {
+        long[] totals = Arrays.copyOf(this.weights, this.size);
+        for (int node = this.size - 1; node > ROOT; node--) {
+            totals[this.parents[node]] += totals[node];
+        }
+        return totals;
+    }
+
+    /**
+     * Prepares the children of the thread for a {@code TimeProfileV2}, or only what changed since the previous window
+     * if given.
+     */
+    public Encoded encodeTime(@Nullable CallTree previous, FlareInternal flare, ProfileDictionary dictionary) {
+        return new Encoded(this, previous, true, flare, dictionary);
+    }
+
+    /**
+     * Prepares the children of the thread for a {@code MemoryProfileV2}, or only what changed since the previous
+     * window if given.
+     */
+    public Encoded encodeMemory(@Nullable CallTree previous, FlareInternal flare, ProfileDictionary dictionary) {
+        return new Encoded(this, previous, false, flare, dictionary);
+    }
+
+    private Optional<String> getPlugin(int node, FlareInternal flare, ProfileDictionary dictionary) {
+        TypeValue method = dictionary.getMethod(this.methods[node]);
+        if (method instanceof JavaMethod) {
+            return flare.getPluginForClass(((JavaMethod) method).getRawClass());
+        }
+        return Optional.empty();
+    }
+
+    private void grow() {
+        int capacity = this.methods.length * 2;
+        this.methods = Arrays.copyOf(this.methods, capacity);
+        this.parents = Arrays.copyOf(this.parents, capacity);
+        this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+        this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+        this.samples = Arrays.copyOf(this.samples, capacity);
+        this.weights = Arrays.copyOf(this.weights, capacity);
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = new long[capacity];
+        int[] nodes = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < this.indexNodes.length; i++) {
+            if (this.indexNodes[i] != 0) {
+                int j = indexHash(this.indexKeys[i]) & mask;
+                while (nodes[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = this.indexKeys[i];
+                nodes[j] = this.indexNodes[i];
+            }
+        }
+        this.indexKeys = keys;
+        this.indexNodes = nodes;
+    }
+
+    private static long indexKey(int parent, int method) {
+        return (long) parent << 32 | (method & 0xffffffffL);
+    }
+
+    private static int indexHash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * The {@code children} and {@code removed} fields of a thread, ready to be written with {@link Proto}. The size of
+     * every node is computed up front in a single pass from the leaves up, so nodes are written straight into the
+     * output without building messages or back-patching lengths.
+     * <p>
+     * Children are sorted by total and, in delta windows, subtrees without changes are left out, exactly like the
+     * generated {@code TimeProfileV2} and {@code MemoryProfileV2} classes would have written them. Every field number
+     * used here fits in a single byte tag.
+     */
+    static final class Encoded {
+        private static final int THREAD_CHILDREN = 4;
+        private static final int THREAD_REMOVED = 5;
+
+        private final CallTree tree;
+        private final @Nullable CallTree previous;
+        private final boolean time;
+        private final long[] totals;
+        // children of node n are sortedChildren[childrenStart[n]] until childrenStart[n + 1]
+        private final int[] childrenStart;
+        private final int[] sortedChildren;
+        private final int[] previousNodes;
+        private final int[] removedSizes;
+        private final boolean[] unchanged;
+        private final String[] plugins;
+        // size of each node's message, -1 if it is left out
+        private final int[] sizes;
+        private final int size;
+
+        private Encoded(CallTree tree, @Nullable CallTree previous, boolean time, FlareInternal flare, ProfileDictionary dictionary) {
+            this.tree = tree;
+            this.previous = previous;
+            this.time = time;
+            int nodes = tree.size;
+            tree.getTotal(ROOT);
+            this.totals = tree.totals;
+
+            this.childrenStart = new int[nodes + 1];
+            for (int node = ROOT + 1; node < nodes; node++) {
+                this.childrenStart[tree.parents[node] + 1]++;
+            }
+            for (int node = 0; node < nodes; node++) {
+                this.childrenStart[node + 1] += this.childrenStart[node];
+            }
+            this.sortedChildren = new int[nodes];
+            int[] scratch = new int[nodes];
+            for (int node = 0; node < nodes; node++) {
+                int index = this.childrenStart[node];
+                for (int child = tree.firstChildren[node]; child != 0; child = tree.nextSiblings[child]) {
+                    this.sortedChildren[index++] = child;
+                }
+                this.sortByTotal(this.childrenStart[node], index, scratch);
+            }
+
+            // parents come before their children, so walking forwards matches every node after its parent
+            this.previousNodes = new int[nodes];
+            this.previousNodes[ROOT] = previous == null ? -1 : ROOT;
+            for (int node = ROOT + 1; node < nodes; node++) {
+                int previousParent = this.previousNodes[tree.parents[node]];
+                this.previousNodes[node] = previousParent < 0 ? -1 : previous.find(previousParent, tree.methods[node]);
+            }
+
+            this.removedSizes = new int[nodes];
+            this.unchanged = new boolean[nodes];
+            this.plugins = new String[nodes];
+            this.sizes = new int[nodes];
+            // and walking backwards sizes every node before its parent
+            for (int node = nodes - 1; node > ROOT; node--) {
+                this.sizes[node] = this.computeSize(node, flare, dictionary);
+            }
+            this.removedSizes[ROOT] = this.computeRemovedSize(ROOT);
+            this.size = this.childrenSize(ROOT) + packedSize(this.removedSizes[ROOT]);
+        }
+
+        /**
+         * Returns how many bytes {@link #writeTo(Proto)} writes.
+         */
+        int getSize() {
+            return this.size;
+        }
+
+        void writeTo(Proto out) {
+            for (int i = this.childrenStart[ROOT]; i < this.childrenStart[ROOT + 1]; i++) {
+                int child = this.sortedChildren[i];
+                if (this.sizes[child] >= 0) {
+                    this.writeNode(out, THREAD_CHILDREN, child);
+                }
+            }
+            this.writeRemoved(out, THREAD_REMOVED, ROOT);
+        }
+
+        private int computeSize(int node, FlareInternal flare, ProfileDictionary dictionary) {
+            int previousNode = this.previousNodes[node];
+            int childrenSize = this.childrenSize(node);
+            if (previousNode >= 0) {
+                this.removedSizes[node] = this.computeRemovedSize(node);
+                boolean changed = this.removedSizes[node] > 0 || this.anyChildWritten(node);
+                this.unchanged[node] = this.time
+                        ? this.totals[node] == this.previous.getTotal(previousNode) && this.tree.samples[node] == this.previous.samples[previousNode]
+                        : (int) this.totals[node] == (int) this.previous.getTotal(previousNode);
+                if (this.unchanged[node] && !changed) {
+                    return -1;
+                }
+            }
+
+            int size = uint32Size(this.tree.methods[node]) + childrenSize + packedSize(this.removedSizes[node]);
+            if (this.unchanged[node]) {
+                return size + 2;
+            }
+            this.plugins[node] = this.tree.getPlugin(node, flare, dictionary).orElse(null);
+            size += stringSize(this.plugins[node]);
+            if (this.time) {
+                size += uint64Size(this.totals[node]) + uint32Size((int) this.tree.samples[node]);
+            } else {
+                size += uint32Size((int) this.totals[node]);
+            }
+            return size;
+        }
+
+        private int computeRemovedSize(int node) {
+            int previousNode = this.previousNodes[node];
+            if (previousNode < 0) {
+                return 0;
+            }
+            int size = 0;
+            for (int child = this.previous.firstChildren[previousNode]; child != 0; child = this.previous.nextSiblings[child]) {
+                if (this.tree.find(node, this.previous.methods[child]) < 0) {
+                    size += Proto.sizeOfInt(this.previous.methods[child]);
+                }
+            }
+            return size;
+        }
+
+        private boolean anyChildWritten(int node) {
+            for (int i = this.childrenStart[node]; i < this.childrenStart[node + 1]; i++) {
+                if (this.sizes[this.sortedChildren[i]] >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int childrenSize(int node) {
+            int size = 0;
+            for (int i = this.childrenStart[node]; i < this.childrenStart[node + 1]; i++) {
+                int childSize = this.sizes[this.sortedChildren[i]];
+                if (childSize >= 0) {
+                    size += 1 + Proto.sizeOfInt(childSize) + childSize;
+                }
+            }
+            return size;
+        }
+
+        private void writeNode(Proto out, int field, int node) {
+            out.header(field, this.sizes[node]);
+            if (this.tree.methods[node] != 0) {
+                out.field(1, this.tree.methods[node]);
+            }
+            if (this.time) {
+                if (!this.unchanged[node]) {
+                    if (this.totals[node] != 0) {
+                        out.field(2, this.totals[node]);
+                    }
+                    if (this.plugins[node] != null && !this.plugins[node].isEmpty()) {
+                        out.field(3, this.plugins[node]);
+                    }
+                    if ((int) this.tree.samples[node] != 0) {
+                        out.field(4, (int) this.tree.samples[node]);
+                    }
+                }
+                this.writeChildren(out, 5, node);
+                if (this.unchanged[node]) {
+                    out.field(6, true);
+                }
+                this.writeRemoved(out, 7, node);
+            } else {
+                if (!this.unchanged[node]) {
+                    if (this.plugins[node] != null && !this.plugins[node].isEmpty()) {
+                        out.field(2, this.plugins[node]);
+                    }
+                    if ((int) this.totals[node] != 0) {
+                        out.field(3, (int) this.totals[node]);
+                    }
+                }
+                this.writeChildren(out, 4, node);
+                if (this.unchanged[node]) {
+                    out.field(5, true);
+                }
+                this.writeRemoved(out, 6, node);
+            }
+        }
+
+        private void writeChildren(Proto out, int field, int node) {
+            for (int i = this.childrenStart[node]; i < this.childrenStart[node + 1]; i++) {
+                int child = this.sortedChildren[i];
+                if (this.sizes[child] >= 0) {
+                    this.writeNode(out, field, child);
+                }
+            }
+        }
+
+        private void writeRemoved(Proto out, int field, int node) {
+            if (this.removedSizes[node] == 0) {
+                return;
+            }
+            int previousNode = this.previousNodes[node];
+            out.header(field, this.removedSizes[node]);
+            for (int child = this.previous.firstChildren[previousNode]; child != 0; child = this.previous.nextSiblings[child]) {
+                if (this.tree.find(node, this.previous.methods[child]) < 0) {
+                    out.writeInt(this.previous.methods[child]);
+                }
+            }
+        }
+
+        // stable, so siblings with the same total keep the order they were added in
+        private void sortByTotal(int from, int to, int[] scratch) {
+            if (to - from <= 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int node = this.sortedChildren[i];
+                    int j = i - 1;
+                    while (j >= from && this.totals[this.sortedChildren[j]] > this.totals[node]) {
+                        this.sortedChildren[j + 1] = this.sortedChildren[j];
+                        j--;
+                    }
+                    this.sortedChildren[j + 1] = node;
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            this.sortByTotal(from, middle, scratch);
+            this.sortByTotal(middle, to, scratch);
+            System.arraycopy(this.sortedChildren, from, scratch, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < middle && this.totals[scratch[left]] <= this.totals[scratch[right]])) {
+                    this.sortedChildren[i] = scratch[left++];
+                } else {
+                    this.sortedChildren[i] = scratch[right++];
+                }
+            }
+        }
+
+        private static int uint32Size(int value) {
+            return value == 0 ? 0 : 1 + Proto.sizeOfInt(value);
+        }
+
+        private static int uint64Size(long value) {
+            return value == 0 ? 0 : 1 + Proto.sizeOfLong(value);
+        }
+
+        private static int stringSize(@Nullable String value) {
+            return value == null || value.isEmpty() ? 0 : 1 + Proto.sizeOfString(value);
+        }
+
+        private static int packedSize(int size) {
+            return size == 0 ? 0 : 1 + Proto.sizeOfInt(size) + size;
+        }
+    }
+}
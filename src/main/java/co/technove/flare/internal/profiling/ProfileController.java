@@ -3,11 +3,18 @@ package co.technove.flare.internal.profiling;
 import co.technove.flare.exceptions.UserReportableException;
 import co.technove.flare.internal.FlareInternal;
 import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.internal.util.IntervalManager;
 import co.technove.flare.live.EventCollector;
 import co.technove.flare.live.LiveCollector;
+import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.sink.ProfileSink;
+import co.technove.flare.sink.SinkPayload;
 
+import java.net.URI;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,23 +22,41 @@ public class ProfileController implements Runnable {
 
     private static final Logger logger = Logger.getLogger("Flare:ProfileController");
     private final FlareInternal flare;
-    private final ProfilingConnection connection;
+    private final List<ProfileSink> sinks;
     private final List<LiveCollector> liveCollectors;
     private final List<EventCollector> eventCollectors;
     private final ProfileDictionary dictionary = new ProfileDictionary();
+    private final ProfilePipeline pipeline;
+    private final TimelineEncoder timelineEncoder;
     private int currentTick = 0;
     private int iterations = 0;
     private long startedAt;
     private boolean stopped = false;
+    private boolean failed = false;
 
     public ProfileController(FlareInternal flare, List<LiveCollector> liveCollectors, List<EventCollector> eventCollectors) throws UserReportableException {
         this.flare = flare;
         this.liveCollectors = liveCollectors;
         this.eventCollectors = eventCollectors;
+        this.timelineEncoder = new TimelineEncoder(flare.getMetrics());
 
-        this.connection = new ProfilingConnection(flare.getAuth(), ProtoHelper.createProfile(flare, eventCollectors, liveCollectors));
+        this.sinks = flare.getSinks();
+        ProfilerFileProto.CreateProfile createProfile = ProtoHelper.createProfile(flare, eventCollectors, liveCollectors);
+        SinkPayload create = new SinkPayload(SinkPayload.Type.CREATE, createProfile::writeTo);
+        for (int i = 0; i < this.sinks.size(); i++) {
+            try {
+                this.sinks.get(i).start(flare);
+                this.sinks.get(i).accept(create);
+            } catch (UserReportableException | RuntimeException e) {
+                for (ProfileSink sink : this.sinks.subList(0, i)) {
+                    sink.close();
+                }
+                throw e;
+            }
+        }
+        this.pipeline = new ProfilePipeline(flare, this.dictionary, this.sinks);
 
-        flare.getIntervalManager().schedule(this, Duration.ofMillis(50));
+        flare.getIntervalManager().schedule(IntervalManager.Lane.CONTROL, this, Duration.ofMillis(50));
 
         this.startedAt = System.currentTimeMillis();
         for (LiveCollector liveCollector : this.liveCollectors) {
@@ -50,21 +75,30 @@ public class ProfileController implements Runnable {
         }
     }
 
-    public String getId() {
-        return this.connection.getId();
+    public Optional<URI> getURI() {
+        for (ProfileSink sink : this.sinks) {
+            Optional<URI> uri = sink.getURI();
+            if (uri.isPresent()) {
+                return uri;
+            }
+        }
+        return Optional.empty();
     }
 
     @Override
     public synchronized void run() {
+        if (this.failed) {
+            return;
+        }
         try {
-            if (this.currentTick == 0) {
+            if (this.currentTick == 0 && !AsyncProfilerIntegration.isProfiling()) {
                 // initialize
                 AsyncProfilerIntegration.startProfiling(this.flare);
             }
 
             if (System.currentTimeMillis() - this.startedAt > 5000) { // report every 5s
                 long newStart = System.currentTimeMillis();
-                this.connection.sendTimelineData(ProtoHelper.createTimeline(this.eventCollectors, this.liveCollectors, this.startedAt, newStart));
+                this.pipeline.submitTimeline(this.timelineEncoder.encode(this.eventCollectors, this.liveCollectors, this.startedAt, newStart));
                 this.startedAt = newStart;
             }
 
@@ -75,6 +109,7 @@ public class ProfileController implements Runnable {
             }
         } catch (Throwable t) {
             logger.log(Level.WARNING, "Failed to run Flare controller", t);
+            this.failed = true;
 
             // just try and kill as much as possible
             try {
@@ -82,21 +117,28 @@ public class ProfileController implements Runnable {
             } catch (Exception e) {
             }
             try {
-                AsyncProfilerIntegration.stopProfiling(this.flare, this.dictionary);
+                AsyncProfilerIntegration.stopProfiling().ifPresent(AsyncProfilerIntegration::deleteRecording);
             } catch (Exception e) {
             }
-            this.flare.stop();
+            // stopping cancels the lane this runs on and waits for the pipeline to drain, so do it elsewhere
+            Thread shutdown = new Thread(() -> {
+                try {
+                    this.flare.stop();
+                } catch (IllegalStateException e) {
+                    // already stopped
+                }
+            }, "Flare Shutdown");
+            shutdown.setDaemon(true);
+            shutdown.start();
         }
     }
 
     public synchronized void stop() {
-        AsyncProfilerIntegration.stopProfiling(this.flare, this.dictionary).ifPresent(file -> {
-            try {
-                this.connection.sendNewData(file.build());
-            } catch (UserReportableException e) {
-                logger.log(Level.WARNING, e.getUserError(), e);
-            }
-        });
+        // in continuous mode windows are cut by rotating the recording, only the final window stops it
+        Optional<Path> recording = this.flare.isContinuousProfiling() && !this.stopped
+                ? AsyncProfilerIntegration.rotateProfiling(this.flare)
+                : AsyncProfilerIntegration.stopProfiling();
+        recording.ifPresent(this.pipeline::submitRecording);
     }
 
     public synchronized void end() {
@@ -120,12 +162,16 @@ public class ProfileController implements Runnable {
             }
         }
 
-        try {
-            this.connection.sendTimelineData(ProtoHelper.createTimeline(this.eventCollectors, this.liveCollectors, this.startedAt, System.currentTimeMillis()));
-        } catch (UserReportableException e) {
-            logger.log(Level.WARNING, "Failed to send timeline data", e);
-        }
+        this.pipeline.submitTimeline(this.timelineEncoder.encode(this.eventCollectors, this.liveCollectors, this.startedAt, System.currentTimeMillis()));
 
         this.stop();
+        this.pipeline.close();
+        for (ProfileSink sink : this.sinks) {
+            try {
+                sink.close();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Failed to close sink " + sink.getClass().getName(), t);
+            }
+        }
     }
 }
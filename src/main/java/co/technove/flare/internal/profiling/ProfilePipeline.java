@@ -0,0 +1,235 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.exceptions.UserReportableException;
+import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.FlareMetrics;
+import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.sink.ProfileSink;
+import co.technove.flare.sink.SinkPayload;
+import one.proto.Proto;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes finished recordings off the scheduler thread. Each stage (parse, encode, delivery to the sinks) runs on
+ * its own worker and hands work to the next one through a bounded queue, so a slow stage only ever backs up the stages
+ * before it. Hand-offs from the scheduler never block; if the pipeline is full the window is dropped instead.
+ */
+class ProfilePipeline {
+
+    private static final Logger logger = Logger.getLogger("Flare:ProfilePipeline");
+    private static final int QUEUE_CAPACITY = 4;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+    // windows whose buffer is taken back once no sink holds them anymore, any past that are left to the GC
+    private static final int MAX_LENT_BUFFERS = 4 * QUEUE_CAPACITY;
+
+    private final Stage<Path> parse;
+    private final Stage<AsyncProfilerIntegration.ParsedProfile> encode;
+    private final Stage<SinkPayload> deliver;
+    // only accessed on the encoder thread
+    private AsyncProfilerIntegration.ParsedProfile previous;
+    private long sequence;
+    private final Set<LentBuffer> lentBuffers = new HashSet<>();
+    private final ReferenceQueue<SinkPayload> returnedBuffers = new ReferenceQueue<>();
+    private int bufferCapacity = 1 << 16;
+    // set when a sink failed to take a window, so the next one is a keyframe that sink can decode again
+    private final AtomicBoolean keyframeNeeded = new AtomicBoolean();
+
+    ProfilePipeline(FlareInternal flare, ProfileDictionary dictionary, List<ProfileSink> sinks) {
+        FlareMetrics metrics = flare.getMetrics();
+        this.deliver = new Stage<>(metrics, "Flare Sink", payload -> {
+            for (ProfileSink sink : sinks) {
+                // one failing sink must not keep the payload from the others
+                try {
+                    sink.accept(payload);
+                } catch (UserReportableException e) {
+                    logger.log(Level.WARNING, e.getUserError(), e);
+                    this.deliveryFailed(payload);
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Failed to deliver profile data to " + sink.getClass().getName(), t);
+                    this.deliveryFailed(payload);
+                }
+            }
+        }, null);
+        // the dictionary is incremental, so encoding and delivery must stay single-threaded to keep windows in order
+        this.encode = new Stage<>(metrics, "Flare Encoder", profile -> {
+            // with delta windows enabled every window after a keyframe only carries the changes to the one before.
+            // A sink that missed a window can not decode the deltas already queued behind it, only the next keyframe
+            int keyframeInterval = flare.getDeltaKeyframeInterval();
+            boolean keyframeNeeded = this.keyframeNeeded.getAndSet(false);
+            boolean delta = keyframeInterval > 0 && this.previous != null && this.sequence % keyframeInterval != 0 && !keyframeNeeded;
+            Proto buffer = this.borrowBuffer();
+            long start = System.nanoTime();
+            ProfilerFileProto.MethodDictionarySlice slice = AsyncProfilerIntegration.encodeProfile(flare, profile, delta ? this.previous : null, this.sequence, dictionary, buffer);
+            metrics.recordEncode(System.nanoTime() - start, buffer.size(), dictionary.size());
+            if (keyframeInterval > 0) {
+                this.previous = profile;
+                this.sequence++;
+            }
+            // the sinks get the buffer itself, it is only encoded into again once nothing can write the payload
+            byte[] window = buffer.buffer();
+            int size = buffer.size();
+            SinkPayload payload = new SinkPayload(outputStream -> outputStream.write(window, 0, size), !delta, slice);
+            this.lend(buffer, payload);
+            this.deliver.put(payload);
+        }, null);
+        this.parse = new Stage<>(metrics, "Flare Parser", file -> {
+            try {
+                this.encode.put(AsyncProfilerIntegration.readProfile(flare, file, dictionary));
+            } finally {
+                AsyncProfilerIntegration.deleteRecording(file);
+            }
+        }, AsyncProfilerIntegration::deleteRecording);
+    }
+
+    // only called on the encoder thread
+    private Proto borrowBuffer() {
+        LentBuffer returned = (LentBuffer) this.returnedBuffers.poll();
+        if (returned == null) {
+            return new Proto(this.bufferCapacity);
+        }
+        this.lentBuffers.remove(returned);
+        return returned.buffer;
+    }
+
+    private void lend(Proto buffer, SinkPayload payload) {
+        // start new buffers at the largest size seen, so they do not have to grow while encoding
+        this.bufferCapacity = Math.max(this.bufferCapacity, buffer.buffer().length);
+        if (this.lentBuffers.size() < MAX_LENT_BUFFERS) {
+            this.lentBuffers.add(new LentBuffer(payload, buffer, this.returnedBuffers));
+        }
+    }
+
+    private void deliveryFailed(SinkPayload payload) {
+        if (payload.getType() == SinkPayload.Type.WINDOW) {
+            this.keyframeNeeded.set(true);
+        }
+    }
+
+    public void submitRecording(Path file) {
+        if (!this.parse.offer(file)) {
+            logger.warning("Flare is falling behind processing profiles, dropping a window");
+        }
+    }
+
+    public void submitTimeline(byte[] timeline) {
+        if (!this.deliver.offer(new SinkPayload(SinkPayload.Type.TIMELINE, outputStream -> outputStream.write(timeline)))) {
+            logger.warning("Flare is falling behind delivering profiles, dropping timeline data");
+        }
+    }
+
+    /**
+     * Lets every queued window finish. All stages share one deadline, so this never waits much longer than
+     * {@value #CLOSE_TIMEOUT_SECONDS} seconds in total; stages still busy after that are interrupted and their windows
+     * dropped.
+     */
+    public void close() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+        this.parse.close(deadline);
+        this.encode.close(deadline);
+        this.deliver.close(deadline);
+    }
+
+    // sinks may keep a payload long after accepting it, so its buffer is only returned once the payload is unreachable
+    private static final class LentBuffer extends PhantomReference<SinkPayload> {
+        private final Proto buffer;
+
+        private LentBuffer(SinkPayload payload, Proto buffer, ReferenceQueue<SinkPayload> queue) {
+            super(payload, queue);
+            this.buffer = buffer;
+        }
+    }
+
+    private interface Handler<T> {
+        void handle(T value) throws Exception;
+    }
+
+    private interface Discarder<T> {
+        void discard(T value);
+    }
+
+    private static final class Stage<T> {
+        private static final Object END = new Object();
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        private final Discarder<T> discarder;
+
+        private Stage(FlareMetrics metrics, String name, Handler<T> handler, Discarder<T> discarder) {
+            this.discarder = discarder;
+            this.thread = metrics.newThread(() -> this.work(handler), name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work(Handler<T> handler) {
+            while (true) {
+                Object value;
+                try {
+                    value = this.queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (value == END) {
+                    break;
+                }
+                try {
+                    handler.handle((T) value);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Failed to process profile in " + Thread.currentThread().getName(), t);
+                }
+            }
+            this.discardRemaining();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void discardRemaining() {
+            Object value;
+            while ((value = this.queue.poll()) != null) {
+                if (value != END && this.discarder != null) {
+                    this.discarder.discard((T) value);
+                }
+            }
+        }
+
+        private boolean offer(T value) {
+            boolean added = this.thread.isAlive() && this.queue.offer(value);
+            if (!added && this.discarder != null) {
+                this.discarder.discard(value);
+            }
+            return added;
+        }
+
+        private void put(T value) throws InterruptedException {
+            this.queue.put(value);
+        }
+
+        private void close(long deadline) {
+            try {
+                if (this.queue.offer(END, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    TimeUnit.NANOSECONDS.timedJoin(this.thread, deadline - System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.thread.isAlive()) {
+                this.thread.interrupt();
+            }
+        }
+    }
+}
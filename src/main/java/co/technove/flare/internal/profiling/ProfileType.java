@@ -3,6 +3,7 @@ package co.technove.flare.internal.profiling;
 import one.jfr.event.AllocationSample;
 import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
+import one.jfr.event.EventRecord;
 import one.jfr.event.ExecutionSample;
 import one.profiler.Events;
 
@@ -15,10 +16,12 @@ public enum ProfileType {
 
     private final String internalName;
     private final Class<? extends Event> eventClass;
+    private final int eventType;
 
     ProfileType(String internalName, Class<? extends Event> eventClass) {
         this.internalName = internalName;
         this.eventClass = eventClass;
+        this.eventType = EventRecord.typeOf(eventClass);
     }
 
     public String getInternalName() {
@@ -28,4 +31,8 @@ public enum ProfileType {
     public Class<? extends Event> getEventClass() {
         return eventClass;
     }
+
+    public int getEventType() {
+        return eventType;
+    }
 }
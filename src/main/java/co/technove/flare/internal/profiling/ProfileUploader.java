@@ -0,0 +1,193 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.exceptions.UserReportableException;
+import co.technove.flare.internal.FlareMetrics;
+import com.eclipsesource.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers uploads to the Flare server one at a time, in the order they were submitted, without ever blocking the
+ * submitter. A few uploads are queued in memory; once that is full, or while older uploads are still spooled, further
+ * ones are written to an on-disk {@link UploadSpool} and replayed from there. Failed requests are retried with
+ * exponential backoff, unless the server rejected the data itself.
+ */
+public class ProfileUploader {
+
+    private static final Logger logger = Logger.getLogger("Flare:ProfileUploader");
+    private static final int MEMORY_CAPACITY = 8;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final ProfilingConnection connection;
+    private final ScheduledExecutorService executor;
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    // everything below is only accessed on the uploader thread
+    private final UploadSpool spool;
+    private final Deque<Pending> memory = new ArrayDeque<>();
+    private boolean sending;
+    private boolean waiting;
+    private boolean closing;
+    private long backoff;
+
+    public ProfileUploader(ProfilingConnection connection, Path spoolDirectory, long spoolLimit, FlareMetrics metrics) {
+        this.connection = connection;
+        this.spool = new UploadSpool(spoolDirectory, spoolLimit);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = metrics.newThread(runnable, "Flare Uploader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void submit(String path, ProfilingConnection.Writer writer) {
+        try {
+            this.executor.execute(() -> this.enqueue(new Pending(path, writer)));
+        } catch (RejectedExecutionException e) {
+            logger.warning("Flare uploader has been closed, dropping data for " + path);
+        }
+    }
+
+    /**
+     * Waits a bounded amount of time for everything submitted to be delivered, then discards whatever is left.
+     */
+    public void close() {
+        try {
+            this.executor.execute(() -> {
+                this.closing = true;
+                this.pump();
+            });
+            this.drained.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException | ExecutionException e) {
+            // already closed
+        } catch (TimeoutException e) {
+            logger.warning("Timed out delivering data to the Flare server");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.executor.shutdownNow();
+        try {
+            this.executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int remaining = this.memory.size() + this.spool.size();
+        if (remaining > 0) {
+            logger.warning("Discarding " + remaining + " uploads that could not be delivered to the Flare server");
+        }
+        this.memory.clear();
+        this.spool.clear();
+    }
+
+    private void enqueue(Pending pending) {
+        if (this.spool.isEmpty() && this.memory.size() < MEMORY_CAPACITY) {
+            this.memory.addLast(pending);
+        } else {
+            try {
+                if (!this.spool.append(pending.path, pending.writer)) {
+                    logger.warning("Flare upload spool is full, dropping data for " + pending.path);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to spool data for " + pending.path + ", dropping it", e);
+            }
+        }
+        this.pump();
+    }
+
+    private void pump() {
+        while (!this.sending && !this.waiting) {
+            Pending pending = this.memory.peekFirst();
+            if (pending != null) {
+                this.send(this.connection.send(pending.path, pending.writer), true);
+                return;
+            }
+
+            UploadSpool.Record record;
+            try {
+                record = this.spool.peek();
+                if (record != null) {
+                    this.send(this.connection.sendCompressed(record.getPath(), record.openBody()), false);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read spooled data, dropping it", e);
+                this.removeHead(false);
+                continue;
+            }
+
+            if (this.closing) {
+                this.drained.complete(null);
+            }
+            return;
+        }
+    }
+
+    private void send(CompletableFuture<JsonObject> request, boolean fromMemory) {
+        this.sending = true;
+        request.whenCompleteAsync((object, error) -> this.completed(fromMemory, error), this.executor);
+    }
+
+    private void completed(boolean fromMemory, Throwable error) {
+        this.sending = false;
+        error = error == null ? null : ProfilingConnection.unwrap(error);
+
+        if (error instanceof IOException) {
+            this.backoff = this.backoff == 0 ? INITIAL_BACKOFF_MILLIS : Math.min(this.backoff * 2, MAX_BACKOFF_MILLIS);
+            logger.warning("Failed to upload to the Flare server, retrying in " + this.backoff + "ms: " + error);
+            this.waiting = true;
+            this.executor.schedule(() -> {
+                this.waiting = false;
+                this.pump();
+            }, this.backoff, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        if (error instanceof UserReportableException) {
+            logger.log(Level.WARNING, ((UserReportableException) error).getUserError(), error);
+        } else if (error != null) {
+            logger.log(Level.WARNING, "Failed to upload to the Flare server, dropping data", error);
+        }
+        this.backoff = 0;
+        this.removeHead(fromMemory);
+        this.pump();
+    }
+
+    private void removeHead(boolean fromMemory) {
+        if (fromMemory) {
+            this.memory.pollFirst();
+            return;
+        }
+        try {
+            this.spool.remove();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read spooled data, discarding the spool", e);
+            this.spool.clear();
+        }
+    }
+
+    private static final class Pending {
+        private final String path;
+        private final ProfilingConnection.Writer writer;
+
+        private Pending(String path, ProfilingConnection.Writer writer) {
+            this.path = path;
+            this.writer = writer;
+        }
+    }
+}
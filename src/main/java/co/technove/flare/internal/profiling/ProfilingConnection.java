@@ -2,37 +2,76 @@ package co.technove.flare.internal.profiling;
 
 import co.technove.flare.FlareAuth;
 import co.technove.flare.exceptions.UserReportableException;
-import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.internal.FlareMetrics;
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.ParseException;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
-class ProfilingConnection {
+/**
+ * Connection to a single profile on the Flare server. Requests complete asynchronously; a failure is an
+ * {@link IOException} when retrying may succeed and a {@link UserReportableException} when the server rejected the
+ * data.
+ */
+public class ProfilingConnection {
+
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+    // a stalled request would otherwise keep the body writer blocked on a full pipe
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
 
     private final FlareAuth flareAuth;
+    private final FlareMetrics metrics;
     private final HttpClient client;
+    // serializes and compresses request bodies into the pipe the http client reads from, exits when idle
+    private final ThreadPoolExecutor bodyWriter;
 
     private final String id;
     private final String key;
 
-    public ProfilingConnection(FlareAuth flareAuth, ProfilerFileProto.CreateProfile profilerCreator) throws UserReportableException {
+    public ProfilingConnection(FlareAuth flareAuth, Writer profilerCreator, FlareMetrics metrics) throws UserReportableException {
         this.flareAuth = flareAuth;
+        this.metrics = metrics;
         this.client = HttpClient.newBuilder()
                 .connectTimeout(Duration.ofSeconds(10))
                 .build();
+        this.bodyWriter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = metrics.newThread(runnable, "Flare Upload Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bodyWriter.allowCoreThreadTimeOut(true);
 
-        JsonObject object = this.request(profilerCreator::writeTo, "create");
+        JsonObject object;
+        try {
+            object = this.send("create", profilerCreator).get();
+        } catch (InterruptedException e) {
+            throw new UserReportableException("Failed connecting to Flare server", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UserReportableException) {
+                throw (UserReportableException) e.getCause();
+            }
+            throw new UserReportableException("Failed connecting to Flare server", e.getCause());
+        }
         this.id = object.getString("id", null);
         this.key = object.getString("key", null);
         if (this.id == null || this.key == null) {
@@ -40,49 +79,148 @@ class ProfilingConnection {
         }
     }
 
-    public void sendNewData(ProfilerFileProto.AirplaneProfileFile file) throws UserReportableException {
-        this.request(file::writeTo, this.id, this.key);
+    public String getDataPath() {
+        return this.id + "/" + this.key;
     }
 
-    public void sendTimelineData(ProfilerFileProto.TimelineFile file) throws UserReportableException {
-        this.request(file::writeTo, this.id, this.key, "timeline");
+    public String getTimelinePath() {
+        return this.id + "/" + this.key + "/timeline";
     }
 
-    private JsonObject request(Writer writer, String... path) throws UserReportableException {
+    /**
+     * Posts the gzipped output of the writer. The body is streamed: it is compressed on the writer thread into a
+     * fixed size pipe while the http client sends it, so only a small buffer of the payload is ever held in memory.
+     */
+    public CompletableFuture<JsonObject> send(String path, Writer writer) {
+        PipedInputStream input = new PipedInputStream(PIPE_BUFFER_SIZE);
+        PipedOutputStream output;
         try {
-            ByteArrayOutputStream data = new ByteArrayOutputStream();
-            try (OutputStream stream = new GZIPOutputStream(data)) {
+            output = new PipedOutputStream(input);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Void> writing = new CompletableFuture<>();
+        this.bodyWriter.execute(() -> {
+            try {
+                OutputStream stream = new GZIPOutputStream(output, GZIP_BUFFER_SIZE);
                 writer.writeTo(stream);
+                stream.close();
+                writing.complete(null);
+            } catch (IOException | RuntimeException e) {
+                // fail the request instead of ending the body early, which would send a truncated payload
+                closeQuietly(input);
+                writing.completeExceptionally(e);
             }
+        });
 
-            URI uri = this.flareAuth.getUri().resolve("/" + String.join("/", path));
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        this.post(path, input).whenComplete((object, error) -> {
+            // unblocks the writer if the request failed or ended before the whole body was read
+            closeQuietly(input);
+            writing.whenComplete((ignored, writeError) -> {
+                if (error == null && writeError == null) {
+                    result.complete(object);
+                    return;
+                }
+                Throwable failure;
+                if (writeError != null && !(writeError instanceof IOException)) {
+                    // the data itself could not be serialized, sending it again would not help
+                    failure = writeError;
+                } else if (error != null) {
+                    failure = unwrap(error);
+                    if (writeError != null) {
+                        failure.addSuppressed(writeError);
+                    }
+                } else {
+                    failure = new IOException("Failed to write request body", writeError);
+                }
+                result.completeExceptionally(failure);
+            });
+        });
+        return result;
+    }
 
-            HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+    /**
+     * Posts a body that has already been gzipped, such as one replayed from the upload spool.
+     */
+    public CompletableFuture<JsonObject> sendCompressed(String path, InputStream body) {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        this.post(path, body).whenComplete((object, error) -> {
+            closeQuietly(body);
+            if (error == null) {
+                result.complete(object);
+            } else {
+                result.completeExceptionally(unwrap(error));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Never throws; any failure, including building the request, completes the returned future instead so the caller
+     * always gets to release the body.
+     */
+    private CompletableFuture<JsonObject> post(String path, InputStream body) {
+        URI uri;
+        HttpRequest request;
+        CountingInputStream countingBody = new CountingInputStream(body);
+        try {
+            uri = this.flareAuth.getUri().resolve("/" + path);
+            request = HttpRequest.newBuilder()
                     .uri(uri)
+                    .timeout(REQUEST_TIMEOUT)
                     .header("Authorization", "token " + this.flareAuth.getToken())
-                    .POST(HttpRequest.BodyPublishers.ofByteArray(data.toByteArray()))
-                    .build(), HttpResponse.BodyHandlers.ofString());
-
-            String body = response.body();
-
-            JsonObject object;
+                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> countingBody))
+                    .build();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = System.nanoTime();
+        return this.client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
             try {
-                object = Json.parse(body).asObject();
-            } catch (ParseException e) {
-                throw new UserReportableException("Received invalid data from Flare server", new IOException("URI: " + uri + " Body:\n" + body.substring(0, Math.min(100, body.length()))));
+                JsonObject object = parseResponse(uri, response);
+                this.metrics.recordUpload(System.nanoTime() - start, countingBody.count);
+                return object;
+            } catch (IOException | UserReportableException e) {
+                throw new CompletionException(e);
             }
+        });
+    }
 
-            if (response.statusCode() != 200) {
-                throw new IOException("Error occurred sending data: Failed to open connection to profile server, code: " + response.statusCode() + " msg: " + object);
-            }
+    private static JsonObject parseResponse(URI uri, HttpResponse<String> response) throws IOException, UserReportableException {
+        int status = response.statusCode();
+        String body = response.body();
+        if (status >= 500 || status == 429) {
+            throw new IOException("Flare server is unavailable, code: " + status);
+        }
 
-            if (object.getBoolean("error", false)) {
-                throw new UserReportableException("Error from Flare server: " + object.getString("message", "unknown error"));
-            }
+        JsonObject object;
+        try {
+            object = Json.parse(body).asObject();
+        } catch (ParseException | UnsupportedOperationException e) {
+            throw new UserReportableException("Received invalid data from Flare server", new IOException("URI: " + uri + " Body:\n" + body.substring(0, Math.min(100, body.length()))));
+        }
 
-            return object;
-        } catch (IOException | InterruptedException e) {
-            throw new UserReportableException("Failed connecting to Flare server", e);
+        if (status != 200) {
+            throw new UserReportableException("Failed to send data to Flare server", "Error occurred sending data, code: " + status + " msg: " + object);
+        }
+
+        if (object.getBoolean("error", false)) {
+            throw new UserReportableException("Error from Flare server: " + object.getString("message", "unknown error"));
+        }
+
+        return object;
+    }
+
+    static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
         }
     }
 
@@ -90,7 +228,33 @@ class ProfilingConnection {
         return id;
     }
 
-    private interface Writer {
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                this.count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                this.count += read;
+            }
+            return read;
+        }
+    }
+
+    public interface Writer {
         void writeTo(OutputStream outputStream) throws IOException;
     }
 }
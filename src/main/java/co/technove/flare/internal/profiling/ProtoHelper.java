@@ -77,27 +77,4 @@ public class ProtoHelper {
                         .build())
                 .build();
     }
-
-    public static ProfilerFileProto.TimelineFile createTimeline(List<EventCollector> eventCollectors, List<LiveCollector> liveCollectors, long startedAt, long stoppedAt) {
-        return ProfilerFileProto.TimelineFile.newBuilder()
-                .setStartedAt(startedAt)
-                .setStoppedAt(stoppedAt)
-                .addAllEvents(eventCollectors.stream().map(eventCollector -> {
-                            return eventCollector.getAndCopyEvents().stream().map(event -> ProfilerFileProto.TimelineFile.EventData.newBuilder()
-                                    .setType(event.getData().getId())
-                                    .setTime(event.getTime())
-                                    .setDuration(Math.toIntExact(event.getDuration()))
-                                    .putAllMetadata(event.getMetadata())
-                                    .build()).collect(Collectors.toList());
-                        })
-                        .flatMap(List::stream)
-                        .collect(Collectors.toList()))
-                .addAllLive(liveCollectors.stream().map(liveCollector -> {
-                    return liveCollector.useDataThenClear(map -> map.entrySet().stream().map(entry -> ProfilerFileProto.TimelineFile.LiveData.newBuilder()
-                            .setType(entry.getKey().getId())
-                            .addAllData(entry.getValue())
-                            .build()).collect(Collectors.toList()));
-                }).flatMap(List::stream).collect(Collectors.toList()))
-                .build();
-    }
 }
@@ -0,0 +1,145 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.FlareMetrics;
+import co.technove.flare.internal.util.DoubleArrayList;
+import co.technove.flare.internal.util.StreamingHistogram;
+import co.technove.flare.live.CollectorData;
+import co.technove.flare.live.EventCollector;
+import co.technove.flare.live.LiveCollector;
+import co.technove.flare.live.LiveEvent;
+import one.proto.Proto;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@code TimelineFile} messages directly instead of going through the generated builders, so live data goes
+ * from the collector buffers into packed doubles without boxing every value. The buffers are reused between
+ * timelines; only the finished message is copied out. Not thread safe.
+ */
+final class TimelineEncoder {
+
+    private final FlareMetrics metrics;
+    private final Proto file = new Proto(16384);
+    private final Proto message = new Proto(4096);
+    private final Proto nested = new Proto(256);
+    private final Proto entry = new Proto(32);
+    private final DoubleArrayList.ArrayVisitor packer = (array, size) -> {
+        if (size > 0) {
+            this.message.field(2, array, 0, size);
+        }
+    };
+
+    TimelineEncoder(FlareMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    byte[] encode(List<EventCollector> eventCollectors, List<LiveCollector> liveCollectors, long startedAt, long stoppedAt) {
+        Map<String, Long> droppedEvents = new HashMap<>();
+        for (EventCollector eventCollector : eventCollectors) {
+            eventCollector.getAndResetDropped().forEach((data, dropped) -> droppedEvents.merge(data.getId(), dropped, Long::sum));
+        }
+
+        this.file.reset();
+        writeUInt64(this.file, 1, startedAt);
+        writeUInt64(this.file, 2, stoppedAt);
+
+        for (EventCollector eventCollector : eventCollectors) {
+            for (LiveEvent event : eventCollector.getAndCopyEvents()) {
+                this.message.reset();
+                writeString(this.message, 1, event.getData().getId());
+                writeUInt64(this.message, 2, event.getTime());
+                writeUInt32(this.message, 3, Math.toIntExact(event.getDuration()));
+                for (Map.Entry<String, String> metadata : event.getMetadata().entrySet()) {
+                    this.nested.reset();
+                    this.nested.field(1, metadata.getKey()).field(2, metadata.getValue());
+                    this.message.field(4, this.nested);
+                }
+                this.file.field(3, this.message);
+            }
+        }
+
+        for (LiveCollector liveCollector : liveCollectors) {
+            liveCollector.useDataThenClear(map -> {
+                map.forEach((data, values) -> {
+                    this.message.reset();
+                    writeString(this.message, 1, data.getId());
+                    values.visitArray(this.packer);
+                    this.file.field(4, this.message);
+                });
+                return null;
+            });
+        }
+        for (LiveCollector liveCollector : liveCollectors) {
+            liveCollector.useSummariesThenClear(map -> {
+                map.forEach(this::writeSummary);
+                return null;
+            });
+        }
+        // values are only counted as dropped once their buffer is drained
+        long droppedValues = 0;
+        for (LiveCollector liveCollector : liveCollectors) {
+            for (Map.Entry<CollectorData, Long> entry : liveCollector.getAndResetDropped().entrySet()) {
+                droppedEvents.merge(entry.getKey().getId(), entry.getValue(), Long::sum);
+                droppedValues += entry.getValue();
+            }
+        }
+        this.metrics.recordDroppedValues(droppedValues);
+
+        droppedEvents.forEach((type, dropped) -> {
+            this.nested.reset();
+            this.nested.field(1, type).field(2, (long) dropped);
+            this.file.field(5, this.nested);
+        });
+
+        return Arrays.copyOf(this.file.buffer(), this.file.size());
+    }
+
+    private void writeSummary(CollectorData data, StreamingHistogram histogram) {
+        this.message.reset();
+        writeString(this.message, 1, data.getId());
+        if (histogram.getCount() > 0) {
+            this.nested.reset();
+            writeUInt64(this.nested, 1, histogram.getCount());
+            writeDouble(this.nested, 2, histogram.getMin());
+            writeDouble(this.nested, 3, histogram.getMax());
+            writeDouble(this.nested, 4, histogram.getMean());
+            for (double percentile : data.getPercentiles()) {
+                this.entry.reset();
+                writeDouble(this.entry, 1, percentile);
+                writeDouble(this.entry, 2, histogram.getPercentile(percentile));
+                this.nested.field(5, this.entry);
+            }
+            this.message.field(4, this.nested);
+        }
+        this.file.field(4, this.message);
+    }
+
+    // proto3 leaves out fields with default values
+
+    private static void writeString(Proto proto, int index, String value) {
+        if (!value.isEmpty()) {
+            proto.field(index, value);
+        }
+    }
+
+    private static void writeUInt32(Proto proto, int index, int value) {
+        if (value != 0) {
+            proto.field(index, value);
+        }
+    }
+
+    private static void writeUInt64(Proto proto, int index, long value) {
+        if (value != 0) {
+            proto.field(index, value);
+        }
+    }
+
+    private static void writeDouble(Proto proto, int index, double value) {
+        if (Double.doubleToRawLongBits(value) != 0) {
+            proto.field(index, value);
+        }
+    }
+}
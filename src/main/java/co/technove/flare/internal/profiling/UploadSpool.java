@@ -0,0 +1,289 @@
+package co.technove.flare.internal.profiling;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size capped, append-only queue of gzipped uploads on disk, used while the Flare server can not keep up. Records are
+ * written to segment files as {@code [int pathLength][path][long bodyLength][body]} and a segment is deleted once all
+ * its records have been consumed. Not thread safe, only the uploader thread may use it.
+ */
+class UploadSpool {
+
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentSize;
+    private final String prefix = "flare-upload-" + UUID.randomUUID() + "-";
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Record head;
+    private int nextSegment;
+    private long bytes;
+    private int records;
+
+    UploadSpool(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, maxBytes / 8);
+    }
+
+    public boolean isEmpty() {
+        return this.records == 0;
+    }
+
+    public int size() {
+        return this.records;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Appends the gzipped output of the writer.
+     *
+     * @return false if the record did not fit within the size limit and was discarded
+     */
+    public boolean append(String path, ProfilingConnection.Writer writer) throws IOException {
+        Segment segment = this.segments.peekLast();
+        if (segment == null || segment.writeOffset >= this.segmentSize) {
+            segment = this.openSegment();
+        }
+
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        long start = segment.writeOffset;
+        long bodyStart = start + Integer.BYTES + pathBytes.length + Long.BYTES;
+        try {
+            ChannelOutputStream body = new ChannelOutputStream(segment.channel, bodyStart);
+            try (OutputStream stream = new GZIPOutputStream(new BufferedOutputStream(body))) {
+                writer.writeTo(stream);
+            }
+
+            long bodyLength = body.position - bodyStart;
+            long recordSize = body.position - start;
+            if (this.bytes + recordSize > this.maxBytes) {
+                segment.channel.truncate(start);
+                return false;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + pathBytes.length + Long.BYTES);
+            header.putInt(pathBytes.length).put(pathBytes).putLong(bodyLength).flip();
+            while (header.hasRemaining()) {
+                segment.channel.write(header, start + header.position());
+            }
+
+            segment.writeOffset = body.position;
+            segment.records++;
+            this.bytes += recordSize;
+            this.records++;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            try {
+                segment.channel.truncate(start);
+            } catch (IOException ignored) {
+                // the record is not counted, so anything left behind is skipped along with the segment
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the oldest record without removing it, or null if the spool is empty.
+     */
+    public Record peek() throws IOException {
+        Segment segment = this.segments.peekFirst();
+        if (segment == null || segment.records == 0) {
+            return null;
+        }
+        if (this.head != null) {
+            return this.head;
+        }
+
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(segment.file, length, segment.readOffset);
+        ByteBuffer header = ByteBuffer.allocate(length.getInt(0) + Long.BYTES);
+        readFully(segment.file, header, segment.readOffset + Integer.BYTES);
+
+        byte[] path = new byte[header.capacity() - Long.BYTES];
+        header.get(path);
+        long bodyOffset = segment.readOffset + Integer.BYTES + path.length + Long.BYTES;
+        this.head = new Record(new String(path, StandardCharsets.UTF_8), segment.file, bodyOffset, header.getLong());
+        return this.head;
+    }
+
+    /**
+     * Removes the oldest record, deleting its segment if nothing else is left in it.
+     */
+    public void remove() throws IOException {
+        Segment segment = this.segments.peekFirst();
+        if (segment == null || segment.records == 0) {
+            return;
+        }
+        Record record = this.peek();
+        this.head = null;
+
+        long next = record.bodyOffset + record.length;
+        this.bytes -= next - segment.readOffset;
+        this.records--;
+        segment.readOffset = next;
+        segment.records--;
+
+        if (segment.records == 0 && (this.segments.size() > 1 || segment.writeOffset >= this.segmentSize)) {
+            this.segments.removeFirst();
+            segment.delete();
+        }
+    }
+
+    /**
+     * Deletes every segment along with the records left in them.
+     */
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.delete();
+        }
+        this.segments.clear();
+        this.head = null;
+        this.bytes = 0;
+        this.records = 0;
+    }
+
+    private Segment openSegment() throws IOException {
+        Files.createDirectories(this.directory);
+        Path file = this.directory.resolve(this.prefix + this.nextSegment++ + ".seg");
+        Segment segment = new Segment(file, FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        Segment previous = this.segments.peekLast();
+        if (previous != null) {
+            previous.closeChannel();
+        }
+        this.segments.addLast(segment);
+        return segment;
+    }
+
+    private static void readFully(Path file, ByteBuffer buffer, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Upload spool segment " + file + " is truncated");
+                }
+            }
+        }
+        buffer.flip();
+    }
+
+    static final class Record {
+        private final String path;
+        private final Path file;
+        private final long bodyOffset;
+        private final long length;
+
+        private Record(String path, Path file, long bodyOffset, long length) {
+            this.path = path;
+            this.file = file;
+            this.bodyOffset = bodyOffset;
+            this.length = length;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Opens the gzipped body of the record. The caller must close it.
+         */
+        public InputStream openBody() throws IOException {
+            FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ);
+            return new InputStream() {
+                private long position = bodyOffset;
+                private final long end = bodyOffset + length;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (this.position >= this.end) {
+                        return -1;
+                    }
+                    int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.end - this.position)), this.position);
+                    if (n < 0) {
+                        throw new IOException("Upload spool segment " + file + " is truncated");
+                    }
+                    this.position += n;
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private ChannelOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                this.position += this.channel.write(buffer, this.position);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final FileChannel channel;
+        private long writeOffset;
+        private long readOffset;
+        private int records;
+
+        private Segment(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        private void closeChannel() {
+            try {
+                this.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void delete() {
+            this.closeChannel();
+            try {
+                Files.deleteIfExists(this.file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package co.technove.flare.internal.profiling.dictionary;
+
+import co.technove.flare.proto.ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses JVM method descriptors such as {@code (ILjava/lang/String;[J)V} in a single pass over their characters.
+ */
+final class DescriptorParser {
+
+    private DescriptorParser() {
+    }
+
+    static Signature parseSignature(String descriptor, ProfileDictionary dictionary) {
+        if (descriptor.isEmpty() || descriptor.charAt(0) != '(') {
+            throw new IllegalArgumentException("Invalid method descriptor " + descriptor);
+        }
+
+        List<JavaDictionaryEntry.JavaTypeValue> params = new ArrayList<>();
+        int[] position = {1};
+        while (position[0] < descriptor.length() && descriptor.charAt(position[0]) != ')') {
+            params.add(parseType(descriptor, position, dictionary));
+        }
+        if (position[0] >= descriptor.length()) {
+            throw new IllegalArgumentException("Unterminated parameters in " + descriptor);
+        }
+        position[0]++;
+
+        JavaDictionaryEntry.JavaTypeValue returnType = parseType(descriptor, position, dictionary);
+        return new Signature(Collections.unmodifiableList(params), returnType);
+    }
+
+    /**
+     * Splits a dotted class name into its package and simple name. Lambda classes keep their generated suffix as
+     * part of the simple name, since it may contain dots.
+     */
+    static JavaDictionaryEntry.JavaClass parseClass(String classString, ProfileDictionary dictionary) {
+        int lambdaIndex = classString.indexOf("$$Lambda$");
+        int end = lambdaIndex > -1 ? lambdaIndex : classString.length();
+        int separator = classString.lastIndexOf('.', end - 1);
+
+        return JavaDictionaryEntry.JavaClass.newBuilder()
+                .setPackageIndex(dictionary.getOrAddPackage(separator > -1 ? classString.substring(0, separator) : ""))
+                .setName(classString.substring(separator + 1))
+                .build();
+    }
+
+    private static JavaDictionaryEntry.JavaTypeValue parseType(String descriptor, int[] position, ProfileDictionary dictionary) {
+        int i = position[0];
+        int array = 0;
+        while (i < descriptor.length() && descriptor.charAt(i) == '[') {
+            array++;
+            i++;
+        }
+        if (i >= descriptor.length()) {
+            throw new IllegalArgumentException("Missing type at " + i + " in " + descriptor);
+        }
+
+        char type = descriptor.charAt(i);
+        JavaDictionaryEntry.JavaTypeValue.Builder builder = JavaDictionaryEntry.JavaTypeValue.newBuilder().setArray(array);
+        if (type == 'L') {
+            int end = descriptor.indexOf(';', i);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated class type at " + i + " in " + descriptor);
+            }
+            int separator = descriptor.lastIndexOf('/', end);
+            int nameStart = Math.max(separator + 1, i + 1);
+            String packageName = separator > i ? descriptor.substring(i + 1, separator).replace('/', '.') : "";
+
+            builder.setJavaClassType(JavaDictionaryEntry.JavaClass.newBuilder()
+                    .setPackageIndex(dictionary.getOrAddPackage(packageName))
+                    .setName(descriptor.substring(nameStart, end))
+                    .build());
+            position[0] = end + 1;
+        } else {
+            builder.setPrimitive(primitiveName(type, descriptor));
+            position[0] = i + 1;
+        }
+        return builder.build();
+    }
+
+    private static String primitiveName(char type, String descriptor) {
+        switch (type) {
+            case 'Z':
+                return "boolean";
+            case 'B':
+                return "byte";
+            case 'C':
+                return "char";
+            case 'S':
+                return "short";
+            case 'I':
+                return "int";
+            case 'J':
+                return "long";
+            case 'F':
+                return "float";
+            case 'D':
+                return "double";
+            case 'V':
+                return "void";
+            default:
+                throw new IllegalArgumentException("Unknown type " + type + " in " + descriptor);
+        }
+    }
+
+    static final class Signature {
+        private final List<JavaDictionaryEntry.JavaTypeValue> params;
+        private final JavaDictionaryEntry.JavaTypeValue returnType;
+
+        private Signature(List<JavaDictionaryEntry.JavaTypeValue> params, JavaDictionaryEntry.JavaTypeValue returnType) {
+            this.params = params;
+            this.returnType = returnType;
+        }
+
+        List<JavaDictionaryEntry.JavaTypeValue> getParams() {
+            return params;
+        }
+
+        JavaDictionaryEntry.JavaTypeValue getReturnType() {
+            return returnType;
+        }
+    }
+}
@@ -2,62 +2,67 @@ package co.technove.flare.internal.profiling.dictionary;
 
 import co.technove.flare.proto.ProfilerFileProto.MethodDictionarySlice;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
+/**
+ * Java method as referenced by a JFR recording. Symbols are kept as the raw bytes read from the recording and
+ * only decoded once the method is actually written to a dictionary slice.
+ */
 public class JavaMethod extends TypeValue {
-    private static final Map<Character, String> PRIMITIVES;
+    private final byte[] className;
+    private final byte[] methodName;
+    private final byte[] signature;
+    private final int hash;
 
-    static {
-        Map<Character, String> map = new HashMap<>();
+    private String classString;
+    private String rawClass;
+    private String methodStr;
+    private String signatureStr;
 
-        map.put('Z', "boolean");
-        map.put('B', "byte");
-        map.put('C', "char");
-        map.put('S', "short");
-        map.put('I', "int");
-        map.put('J', "long");
-        map.put('F', "float");
-        map.put('D', "double");
-        map.put('V', "void");
-
-        PRIMITIVES = Collections.unmodifiableMap(map);
-    }
-
-
-    private final String classString;
-    private final String methodStr;
-    private final String signatureStr;
-
-    public JavaMethod(JFRMethodType type, String classString, String methodStr, String signatureStr, String fullPath) {
+    public JavaMethod(JFRMethodType type, byte[] className, byte[] methodName, byte[] signature) {
         super(type);
-        this.classString = Objects.requireNonNull(classString);
-        this.methodStr = Objects.requireNonNull(methodStr);
-        this.signatureStr = Objects.requireNonNull(signatureStr);
+        this.className = Objects.requireNonNull(className);
+        this.methodName = Objects.requireNonNull(methodName);
+        this.signature = Objects.requireNonNull(signature);
+        this.hash = 31 * (31 * Arrays.hashCode(className) + Arrays.hashCode(methodName)) + Arrays.hashCode(signature);
     }
 
     public String getClassString() {
+        String classString = this.classString;
+        if (classString == null) {
+            this.classString = classString = new String(this.className, StandardCharsets.UTF_8).replace('/', '.');
+        }
         return classString;
     }
 
+    /**
+     * Returns the outermost class this method belongs to, which is what plugins are attributed by.
+     */
     public String getRawClass() {
-        String className = this.classString;
-        if (className.contains("$")) {
-            className = className.substring(0, className.indexOf("$"));
+        String rawClass = this.rawClass;
+        if (rawClass == null) {
+            String className = this.getClassString();
+            int index = className.indexOf('$');
+            this.rawClass = rawClass = index > -1 ? className.substring(0, index) : className;
         }
-        return className;
+        return rawClass;
     }
 
     public String getMethodStr() {
+        String methodStr = this.methodStr;
+        if (methodStr == null) {
+            this.methodStr = methodStr = new String(this.methodName, StandardCharsets.UTF_8);
+        }
         return methodStr;
     }
 
     public String getSignatureStr() {
+        String signatureStr = this.signatureStr;
+        if (signatureStr == null) {
+            this.signatureStr = signatureStr = new String(this.signature, StandardCharsets.UTF_8);
+        }
         return signatureStr;
     }
 
@@ -66,101 +71,35 @@ public class JavaMethod extends TypeValue {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         JavaMethod javaMethod = (JavaMethod) o;
-        return Objects.equals(classString, javaMethod.classString) && Objects.equals(methodStr, javaMethod.methodStr) && Objects.equals(signatureStr, javaMethod.signatureStr);
+        return hash == javaMethod.hash && Arrays.equals(className, javaMethod.className) && Arrays.equals(methodName, javaMethod.methodName) && Arrays.equals(signature, javaMethod.signature);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(classString, methodStr, signatureStr);
+        return hash;
     }
 
     @Override
     public String toString() {
-        return this.getMethodType().getPrefix() + this.classString + "." + this.methodStr + this.signatureStr;
-    }
-
-    private MethodDictionarySlice.JavaDictionaryEntry.JavaTypeValue mapType(String unparsed, ProfileDictionary dictionary) {
-        if (unparsed.charAt(unparsed.length() - 1) == ';') {
-            unparsed = unparsed.substring(0, unparsed.length() - 1);
-        }
-        int array = 0;
-        while (unparsed.charAt(0) == '[') {
-            unparsed = unparsed.substring(1);
-            array++;
-        }
-
-        char type = unparsed.charAt(0);
-
-        if (PRIMITIVES.containsKey(type)) {
-            return MethodDictionarySlice.JavaDictionaryEntry.JavaTypeValue.newBuilder()
-                    .setPrimitive(PRIMITIVES.get(type))
-                    .setArray(array)
-                    .build();
-        }
-
-        if (type == 'L') {
-            String[] split = unparsed.substring(1).split("/");
-            String className = split[split.length - 1];
-            String packageName = split.length > 1 ? String.join(".", Arrays.copyOfRange(split, 0, split.length - 1)) : "";
-
-            return MethodDictionarySlice.JavaDictionaryEntry.JavaTypeValue.newBuilder()
-                    .setJavaClassType(MethodDictionarySlice.JavaDictionaryEntry.JavaClass.newBuilder()
-                            .setPackageIndex(dictionary.getOrAddPackage(packageName))
-                            .setName(className)
-                            .build())
-                    .setArray(array)
-                    .build();
-        }
-
-        throw new RuntimeException("Unknown type for string: " + unparsed);
+        return this.getMethodType().getPrefix() + this.getClassString() + "." + this.getMethodStr() + this.getSignatureStr();
     }
 
     @Override
     public MethodDictionarySlice.MethodDictionaryEntry getEntry(ProfileDictionary dictionary) {
-        MethodDictionarySlice.MethodDictionaryEntry.Builder builder = MethodDictionarySlice.MethodDictionaryEntry.newBuilder();
-        MethodDictionarySlice.JavaDictionaryEntry.Builder entry = MethodDictionarySlice.JavaDictionaryEntry.newBuilder();
-
-        int lambdaIndex = this.classString.indexOf("$$Lambda$");
-        String lambdaText = "";
-        String classString = this.classString;
-        if (lambdaIndex > -1) {
-            lambdaText = this.classString.substring(lambdaIndex);
-            classString = this.classString.substring(0, lambdaIndex);
-        }
-        String[] split = classString.split("\\.");
-        String className = split[split.length - 1] + lambdaText;
-        String packageName = split.length > 1 ? String.join(".", Arrays.copyOfRange(split, 0, split.length - 1)) : "";
-
-        entry.setJavaClass(MethodDictionarySlice.JavaDictionaryEntry.JavaClass.newBuilder()
-                .setPackageIndex(dictionary.getOrAddPackage(packageName))
-                .setName(className)
-                .build());
-
-        entry.setMethod(this.methodStr);
-
-        // dumb parsing of the parameters
-        String[] splitSig = this.signatureStr.substring(1).split("\\)");
-        List<MethodDictionarySlice.JavaDictionaryEntry.JavaTypeValue> params = Arrays
-                .stream(splitSig[0].split(";"))
-                .filter(val -> val.length() > 0)
-                .map(type -> {
-                    try {
-                        return mapType(type, dictionary);
-                    } catch (Exception e) {
-                        throw new RuntimeException("Failed to parse param " + type + " from " + this.signatureStr, e);
-                    }
-                })
-                .collect(Collectors.toList());
-
-        entry.addAllParams(params);
+        DescriptorParser.Signature signature;
         try {
-            entry.setReturnType(mapType(splitSig[1], dictionary));
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to parse return " + splitSig[1] + " from " + this.signatureStr, e);
+            signature = dictionary.getOrParseSignature(this.getSignatureStr());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Failed to parse signature " + this.getSignatureStr() + " of " + this, e);
         }
 
-        builder.setJavaEntry(entry);
-        return builder.build();
+        return MethodDictionarySlice.MethodDictionaryEntry.newBuilder()
+                .setJavaEntry(MethodDictionarySlice.JavaDictionaryEntry.newBuilder()
+                        .setJavaClass(dictionary.getOrParseClass(this.getClassString()))
+                        .setMethod(this.getMethodStr())
+                        .addAllParams(signature.getParams())
+                        .setReturnType(signature.getReturnType()))
+                .build();
     }
 
 }
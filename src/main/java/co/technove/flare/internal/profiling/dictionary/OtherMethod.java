@@ -2,6 +2,8 @@ package co.technove.flare.internal.profiling.dictionary;
 
 import co.technove.flare.proto.ProfilerFileProto;
 
+import java.util.Objects;
+
 public class OtherMethod extends TypeValue {
 
     private final String path;
@@ -21,6 +23,19 @@ public class OtherMethod extends TypeValue {
                 .build();
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        OtherMethod that = (OtherMethod) o;
+        return getMethodType() == that.getMethodType() && Objects.equals(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getMethodType(), path);
+    }
+
     @Override
     public String toString() {
         return "OtherMethod{" +
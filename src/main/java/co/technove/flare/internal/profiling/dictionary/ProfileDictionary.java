@@ -3,33 +3,74 @@ package co.technove.flare.internal.profiling.dictionary;
 import co.technove.flare.proto.ProfilerFileProto;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * Append-only interning dictionary of methods and packages. Indices never change once assigned, and
+ * {@link #toProto()} only sends what was added since the previous call.
+ */
 public class ProfileDictionary {
     private final List<TypeValue> entries = new ArrayList<>();
+    private final Map<TypeValue, Integer> entryIndices = new HashMap<>();
     private final List<String> packages = new ArrayList<>();
+    private final Map<String, Integer> packageIndices = new HashMap<>();
+    private final Map<String, DescriptorParser.Signature> signatures = new HashMap<>();
+    private final Map<String, ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry.JavaClass> classes = new HashMap<>();
     private int lastEntryIndex = 0;
     private int lastPackageIndex = 0;
 
     public synchronized int getOrAddPackage(String packageName) {
-        int index = this.packages.indexOf(packageName);
-        if (index < 0) {
+        Integer index = this.packageIndices.get(packageName);
+        if (index == null) {
+            index = this.packages.size();
             this.packages.add(packageName);
-            index = this.packages.indexOf(packageName);
+            this.packageIndices.put(packageName, index);
         }
         return index;
     }
 
     public synchronized int getOrAddMethod(TypeValue method) {
-        int index = this.entries.indexOf(method);
-        if (index < 0) {
+        Integer index = this.entryIndices.get(method);
+        if (index == null) {
+            index = this.entries.size();
             this.entries.add(method);
-            index = this.entries.indexOf(method);
+            this.entryIndices.put(method, index);
         }
         return index;
     }
 
+    /**
+     * Returns how many methods have been added.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    synchronized DescriptorParser.Signature getOrParseSignature(String descriptor) {
+        DescriptorParser.Signature signature = this.signatures.get(descriptor);
+        if (signature == null) {
+            signature = DescriptorParser.parseSignature(descriptor, this);
+            this.signatures.put(descriptor, signature);
+        }
+        return signature;
+    }
+
+    synchronized ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry.JavaClass getOrParseClass(String classString) {
+        ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry.JavaClass javaClass = this.classes.get(classString);
+        if (javaClass == null) {
+            javaClass = DescriptorParser.parseClass(classString, this);
+            this.classes.put(classString, javaClass);
+        }
+        return javaClass;
+    }
+
+    public synchronized TypeValue getMethod(int index) {
+        return this.entries.get(index);
+    }
+
     private synchronized List<ProfilerFileProto.MethodDictionarySlice.MethodDictionaryEntry> getNewEntries() {
         if (this.lastEntryIndex >= this.entries.size()) {
             return new ArrayList<>(0);
@@ -3,7 +3,7 @@ package co.technove.flare.internal.profiling.dictionary;
 import co.technove.flare.proto.ProfilerFileProto;
 import one.jfr.ClassRef;
 import one.jfr.Dictionary;
-import one.jfr.JfrReader;
+import one.jfr.JfrChunk;
 import one.jfr.MethodRef;
 
 import java.nio.charset.StandardCharsets;
@@ -16,7 +16,7 @@ public abstract class TypeValue {
         this.methodType = methodType;
     }
 
-    public static TypeValue getMethodName(long methodId, int type, JfrReader reader, Dictionary<TypeValue> methodNames) {
+    public static TypeValue getMethodName(long methodId, int type, JfrChunk reader, Dictionary<TypeValue> methodNames) {
         TypeValue result = methodNames.get(methodId);
         if (result != null) {
             return result;
@@ -32,10 +32,7 @@ public abstract class TypeValue {
             String methodStr = new String(methodName, StandardCharsets.UTF_8);
             result = new OtherMethod(type == FRAME_KERNEL ? JFRMethodType.KERNEL : JFRMethodType.NATIVE, methodStr);
         } else {
-            String classStr = new String(className, StandardCharsets.UTF_8).replace("/", ".");
-            String methodStr = new String(methodName, StandardCharsets.UTF_8);
-            String signatureStr = new String(signature, StandardCharsets.UTF_8);
-            result = new JavaMethod(JFRMethodType.JAVA, classStr, methodStr, signatureStr, classStr + '.' + methodStr + signatureStr);
+            result = new JavaMethod(JFRMethodType.JAVA, className, methodName, signature);
         }
 
         methodNames.put(methodId, result);
@@ -16,6 +16,21 @@ public class DoubleArrayList extends AbstractList<Double> {
         this.array = new double[capacity];
     }
 
+    private DoubleArrayList(double[] array, int size) {
+        this.array = array;
+        this.size = size;
+    }
+
+    /**
+     * Creates a list backed by the first {@code size} elements of the array, without copying it.
+     */
+    public static DoubleArrayList wrap(double[] array, int size) {
+        if (size < 0 || size > array.length) {
+            throw new IndexOutOfBoundsException(size);
+        }
+        return new DoubleArrayList(array, size);
+    }
+
     @Override
     public Double get(int index) {
         if (index >= this.size) {
@@ -81,15 +96,27 @@ public class DoubleArrayList extends AbstractList<Double> {
         return previous;
     }
 
+    /**
+     * Removes all elements, keeping the backing array so the list can be refilled without allocating.
+     */
     @Override
     public void clear() {
-        int size = Math.max(10, this.array.length >> 1 > this.size ? this.array.length >> 1 : this.array.length);
-        this.array = new double[size];
         this.size = 0;
     }
 
+    /**
+     * Passes the backing array and the number of elements in use to the visitor, without boxing or copying them.
+     */
+    public void visitArray(ArrayVisitor visitor) {
+        visitor.visit(this.array, this.size);
+    }
+
     @Override
     public int size() {
         return this.size;
     }
+
+    public interface ArrayVisitor {
+        void visit(double[] array, int size);
+    }
 }
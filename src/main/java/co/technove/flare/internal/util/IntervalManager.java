@@ -1,36 +1,204 @@
 package co.technove.flare.internal.util;
 
+import co.technove.flare.internal.FlareMetrics;
+
 import java.time.Duration;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Runs repeating tasks on separate lanes, each with its own threads, so a slow collector can not delay the profiler
+ * behind it. Tasks run at a fixed rate, but a task that overruns skips the runs it missed instead of running them back
+ * to back. How long each task runs and how late it starts are recorded, see {@link #getTaskStats()}.
+ */
 public class IntervalManager {
 
     private static final Logger logger = Logger.getLogger("Flare:Scheduler");
-    private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "Flare Thread"));
+    private final Map<Lane, ScheduledThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+    private final List<Task> tasks = new CopyOnWriteArrayList<>();
     private volatile boolean shutdown = false;
 
+    public IntervalManager(FlareMetrics metrics) {
+        for (Lane lane : Lane.values()) {
+            AtomicInteger threads = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(lane.threads, runnable -> metrics.newThread(runnable, lane.threadName + (lane.threads > 1 ? " " + threads.incrementAndGet() : "")));
+            executor.setRemoveOnCancelPolicy(true);
+            this.executors.put(lane, executor);
+        }
+    }
+
+    /**
+     * Schedules the task on the {@link Lane#COLLECTORS} lane.
+     */
     public void schedule(Runnable runnable, Duration interval) {
-        this.exec.scheduleAtFixedRate(() -> {
+        this.schedule(Lane.COLLECTORS, runnable, interval);
+    }
+
+    public void schedule(Lane lane, Runnable runnable, Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+        Task task = new Task(lane, runnable, interval.toNanos());
+        this.tasks.add(task);
+        task.scheduleAt(System.nanoTime());
+    }
+
+    /**
+     * Returns a snapshot of the timings of every scheduled task.
+     */
+    public List<TaskStats> getTaskStats() {
+        List<TaskStats> stats = new ArrayList<>(this.tasks.size());
+        for (Task task : this.tasks) {
+            stats.add(new TaskStats(task));
+        }
+        return stats;
+    }
+
+    public void cancel() {
+        this.shutdown = true;
+        for (ScheduledThreadPoolExecutor executor : this.executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+
+    public enum Lane {
+        /**
+         * The profile controller, which starts and rotates recordings.
+         */
+        CONTROL("Flare Control", 1),
+        /**
+         * Work the profiler relies on, such as tracking which threads to profile.
+         */
+        SAMPLING_SUPPORT("Flare Sampling", 1),
+        /**
+         * Live collectors.
+         */
+        COLLECTORS("Flare Collector", 2);
+
+        private final String threadName;
+        private final int threads;
+
+        Lane(String threadName, int threads) {
+            this.threadName = threadName;
+            this.threads = threads;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    private final class Task implements Runnable {
+        private final Lane lane;
+        private final Runnable runnable;
+        private final long interval;
+        private final StreamingHistogram runTime = new StreamingHistogram();
+        private final StreamingHistogram startDelay = new StreamingHistogram();
+        private final LongAdder skipped = new LongAdder();
+        private long scheduledAt;
+
+        private Task(Lane lane, Runnable runnable, long interval) {
+            this.lane = lane;
+            this.runnable = runnable;
+            this.interval = interval;
+        }
+
+        private void scheduleAt(long time) {
+            this.scheduledAt = time;
+            try {
+                executors.get(this.lane).schedule(this, Math.max(0, time - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                if (!shutdown) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
             if (shutdown) {
                 return;
             }
 
+            long start = System.nanoTime();
+            this.startDelay.record((start - this.scheduledAt) / 1_000_000.0);
             try {
-                runnable.run();
+                this.runnable.run();
             } catch (Throwable t) {
-                // todo if it errors out multiple times cancel?
-                logger.log(Level.WARNING, "Failed to run " + runnable.getClass().getName(), t);
+                logger.log(Level.WARNING, "Failed to run " + this.runnable.getClass().getName(), t);
             }
-        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
-    }
+            long end = System.nanoTime();
+            this.runTime.record((end - start) / 1_000_000.0);
 
-    public void cancel() {
-        this.shutdown = true;
-        this.exec.shutdownNow();
+            // stay on the original rate, but drop the runs that were missed rather than catching up on them
+            long next = this.scheduledAt + this.interval;
+            if (next <= end) {
+                long missed = (end - next) / this.interval + 1;
+                this.skipped.add(missed);
+                next += missed * this.interval;
+            }
+            this.scheduleAt(next);
+        }
     }
 
+    public static final class TaskStats {
+        private final String name;
+        private final Lane lane;
+        private final Duration interval;
+        private final long skippedRuns;
+        private final StreamingHistogram runTime = new StreamingHistogram();
+        private final StreamingHistogram startDelay = new StreamingHistogram();
+
+        private TaskStats(Task task) {
+            this.name = task.runnable.getClass().getName();
+            this.lane = task.lane;
+            this.interval = Duration.ofNanos(task.interval);
+            this.skippedRuns = task.skipped.sum();
+            this.runTime.merge(task.runTime);
+            this.startDelay.merge(task.startDelay);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        /**
+         * Returns how many runs were skipped because the task was still running, or its lane busy, when they were due.
+         */
+        public long getSkippedRuns() {
+            return skippedRuns;
+        }
+
+        /**
+         * Returns how long each run took, in milliseconds.
+         */
+        public StreamingHistogram getRunTime() {
+            return runTime;
+        }
+
+        /**
+         * Returns how long after it was due each run started, in milliseconds.
+         */
+        public StreamingHistogram getStartDelay() {
+            return startDelay;
+        }
+    }
 }
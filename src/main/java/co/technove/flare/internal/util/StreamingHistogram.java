@@ -0,0 +1,187 @@
+package co.technove.flare.internal.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size histogram of doubles with logarithmic buckets, eight per power of two, so percentiles are within about
+ * five percent of the recorded values no matter how many are recorded. Magnitudes outside of 2^-24 to 2^41 fall into
+ * the outermost buckets; the minimum and maximum are always exact.
+ * <p>
+ * Recording is lock-free and may happen from any thread. Reading and {@link #reset()} should only happen while
+ * nothing is being recorded, or the results may be slightly inconsistent.
+ */
+public class StreamingHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MIN_EXPONENT = -24;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray positive = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray negative = new AtomicLongArray(BUCKETS);
+    private final LongAdder zero = new LongAdder();
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final AtomicLong min = new AtomicLong(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+    private final AtomicLong max = new AtomicLong(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+
+    /**
+     * Records a value, ignoring NaN.
+     */
+    public void record(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value > 0) {
+            this.positive.incrementAndGet(bucket(value));
+        } else if (value < 0) {
+            this.negative.incrementAndGet(bucket(-value));
+        } else {
+            this.zero.increment();
+        }
+        this.count.increment();
+        this.sum.add(value);
+        this.updateMin(value);
+        this.updateMax(value);
+    }
+
+    /**
+     * Adds everything recorded by the other histogram to this one.
+     */
+    public void merge(StreamingHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long positive = other.positive.get(i);
+            if (positive != 0) {
+                this.positive.addAndGet(i, positive);
+            }
+            long negative = other.negative.get(i);
+            if (negative != 0) {
+                this.negative.addAndGet(i, negative);
+            }
+        }
+        this.zero.add(other.zero.sum());
+        this.count.add(other.count.sum());
+        this.sum.add(other.sum.sum());
+        this.updateMin(other.getMin());
+        this.updateMax(other.getMax());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.positive.set(i, 0);
+            this.negative.set(i, 0);
+        }
+        this.zero.reset();
+        this.count.reset();
+        this.sum.reset();
+        this.min.set(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+        this.max.set(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public double getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded values, or 0 if there are none.
+     */
+    public double getMean() {
+        long count = this.getCount();
+        return count == 0 ? 0 : this.getSum() / count;
+    }
+
+    /**
+     * Returns the smallest recorded value, or positive infinity if there are none.
+     */
+    public double getMin() {
+        return Double.longBitsToDouble(this.min.get());
+    }
+
+    /**
+     * Returns the largest recorded value, or negative infinity if there are none.
+     */
+    public double getMax() {
+        return Double.longBitsToDouble(this.max.get());
+    }
+
+    /**
+     * Returns an estimate of the value below which the given fraction of recorded values fall, or 0 if there are
+     * none.
+     *
+     * @param percentile between 0 and 1
+     */
+    public double getPercentile(double percentile) {
+        long count = this.getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, Math.min(count, (long) Math.ceil(percentile * count)));
+
+        long seen = 0;
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            seen += this.negative.get(i);
+            if (seen >= rank) {
+                return this.clamp(-midpoint(i));
+            }
+        }
+        seen += this.zero.sum();
+        if (seen >= rank) {
+            return this.clamp(0);
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.positive.get(i);
+            if (seen >= rank) {
+                return this.clamp(midpoint(i));
+            }
+        }
+        return this.getMax();
+    }
+
+    private double clamp(double value) {
+        return Math.max(this.getMin(), Math.min(this.getMax(), value));
+    }
+
+    private void updateMin(double value) {
+        long current;
+        while (value < Double.longBitsToDouble(current = this.min.get())) {
+            if (this.min.compareAndSet(current, Double.doubleToRawLongBits(value))) {
+                return;
+            }
+        }
+    }
+
+    private void updateMax(double value) {
+        long current;
+        while (value > Double.longBitsToDouble(current = this.max.get())) {
+            if (this.max.compareAndSet(current, Double.doubleToRawLongBits(value))) {
+                return;
+            }
+        }
+    }
+
+    // the exponent picks the power of two, the top bits of the mantissa the bucket within it
+    private static int bucket(double magnitude) {
+        int exponent = Math.getExponent(magnitude);
+        if (exponent < MIN_EXPONENT) {
+            return 0;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) ((Double.doubleToRawLongBits(magnitude) & 0x000fffffffffffffL) >>> (52 - SUB_BUCKET_BITS));
+        return (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    private static double midpoint(int bucket) {
+        int exponent = bucket / SUB_BUCKETS + MIN_EXPONENT;
+        int sub = bucket % SUB_BUCKETS;
+        return Math.scalb(1 + (sub + 0.5) / SUB_BUCKETS, exponent);
+    }
+}
@@ -7,6 +7,8 @@ import javax.annotation.Nullable;
 import java.util.Optional;
 
 public class CollectorData {
+    private static final double[] DEFAULT_PERCENTILES = {0.5, 0.9, 0.99};
+
     private final String id;
     private final String name;
     private final String description;
@@ -14,6 +16,8 @@ public class CollectorData {
     private final DataFormatter formatter;
     @Nullable
     private final GraphCategory graphCategory;
+    @Nullable
+    private final double[] percentiles;
 
     public CollectorData(String id, String name, String description) {
         this(id, name, description, null, null);
@@ -28,11 +32,32 @@ public class CollectorData {
     }
 
     public CollectorData(String id, String name, String description, @Nullable DataFormatter formatter, @Nullable GraphCategory graphCategory) {
+        this(id, name, description, formatter, graphCategory, null);
+    }
+
+    private CollectorData(String id, String name, String description, @Nullable DataFormatter formatter, @Nullable GraphCategory graphCategory, @Nullable double[] percentiles) {
         this.id = id;
         this.name = name;
         this.description = description;
         this.formatter = formatter;
         this.graphCategory = graphCategory;
+        this.percentiles = percentiles;
+    }
+
+    /**
+     * Returns a copy of this data type whose values are summarized by a {@link LiveCollector} instead of being sent
+     * individually: each timeline then carries the count, min, max, mean and the given percentiles of the values
+     * reported since the previous one, in constant memory no matter how often values are reported.
+     *
+     * @param percentiles between 0 and 1, defaulting to 0.5, 0.9 and 0.99 when none are given
+     */
+    public CollectorData summarized(double... percentiles) {
+        for (double percentile : percentiles) {
+            if (!(percentile >= 0 && percentile <= 1)) {
+                throw new IllegalArgumentException("Percentile " + percentile + " must be between 0 and 1");
+            }
+        }
+        return new CollectorData(this.id, this.name, this.description, this.formatter, this.graphCategory, percentiles.length == 0 ? DEFAULT_PERCENTILES : percentiles.clone());
     }
 
     public String getId() {
@@ -54,4 +79,15 @@ public class CollectorData {
     public Optional<GraphCategory> getGraphCategory() {
         return Optional.ofNullable(this.graphCategory);
     }
+
+    public boolean isSummarized() {
+        return this.percentiles != null;
+    }
+
+    /**
+     * Returns the percentiles reported for a summarized data type, or an empty array if it is not summarized.
+     */
+    public double[] getPercentiles() {
+        return this.percentiles == null ? new double[0] : this.percentiles.clone();
+    }
 }
@@ -2,15 +2,41 @@ package co.technove.flare.live;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Collector for discrete events. Events are queued until the next timeline is sent; the queue never holds more than
+ * its capacity, and events that do not fit are dropped according to the {@link OverflowPolicy} and counted.
+ */
 public abstract class EventCollector extends Collector {
 
+    public static final int DEFAULT_CAPACITY = 16384;
+
     private final List<CollectorData> data;
-    private final List<LiveEvent> events = new ArrayList<>();
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayBlockingQueue<LiveEvent> events;
+    private final Map<CollectorData, LongAdder> dropped = new ConcurrentHashMap<>();
 
     public EventCollector(CollectorData... data) {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST, data);
+    }
+
+    public EventCollector(int capacity, OverflowPolicy overflowPolicy, CollectorData... data) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
         this.data = Arrays.asList(data);
+        this.events = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "Overflow policy must be defined");
+        for (CollectorData datum : data) {
+            this.dropped.put(datum, new LongAdder());
+        }
     }
 
     @Override
@@ -19,16 +45,58 @@ public abstract class EventCollector extends Collector {
     }
 
     protected void reportEvent(LiveEvent event) {
-        synchronized (this.events) {
-            this.events.add(event);
+        if (this.overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+            if (!this.events.offer(event)) {
+                this.countDropped(event);
+            }
+            return;
+        }
+
+        while (!this.events.offer(event)) {
+            LiveEvent oldest = this.events.poll();
+            if (oldest != null) {
+                this.countDropped(oldest);
+            }
         }
     }
 
+    /**
+     * Removes and returns the queued events, oldest first.
+     */
     public List<LiveEvent> getAndCopyEvents() {
-        synchronized (this.events) {
-            List<LiveEvent> copy = new ArrayList<>(this.events);
-            this.events.clear();
-            return copy;
-        }
+        // only take what was queued when called, so a storm of new events can not keep this going
+        int queued = this.events.size();
+        List<LiveEvent> copy = new ArrayList<>(queued);
+        this.events.drainTo(copy, queued);
+        return copy;
+    }
+
+    /**
+     * Returns how many events of each type were dropped since the last call, leaving out types without drops.
+     */
+    public Map<CollectorData, Long> getAndResetDropped() {
+        Map<CollectorData, Long> dropped = new LinkedHashMap<>();
+        this.dropped.forEach((data, count) -> {
+            long sum = count.sumThenReset();
+            if (sum > 0) {
+                dropped.put(data, sum);
+            }
+        });
+        return dropped;
+    }
+
+    private void countDropped(LiveEvent event) {
+        this.dropped.computeIfAbsent(event.getData(), data -> new LongAdder()).increment();
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Keeps the queued events and drops the one being reported.
+         */
+        DROP_NEWEST,
+        /**
+         * Drops the oldest queued event to make room for the one being reported.
+         */
+        DROP_OLDEST
     }
 }
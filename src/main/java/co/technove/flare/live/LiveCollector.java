@@ -2,22 +2,58 @@ package co.technove.flare.live;
 
 import co.technove.flare.Flare;
 import co.technove.flare.internal.util.DoubleArrayList;
+import co.technove.flare.internal.util.StreamingHistogram;
+
+import org.jetbrains.annotations.Nullable;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
 
+/**
+ * Collector sampling values at an interval. Each data type is stored in a preallocated buffer that reporters append to
+ * without taking a lock; draining swaps in a spare buffer and waits for reporters still appending to the old one. A
+ * reporter only retries if the buffer is swapped out under it, and only allocates when the buffer has to grow. Buffers
+ * grow in chunks, so nothing written is ever copied on the reporting side, up to a hard limit per drain; values past
+ * it are dropped and counted, see {@link #getAndResetDropped()}. After a buffer grew, the next one starts out large
+ * enough to hold as many values.
+ * <p>
+ * Data types that are {@link CollectorData#summarized(double...) summarized} are recorded into a fixed size histogram
+ * instead, so they never drop values.
+ */
 public abstract class LiveCollector extends Collector implements Runnable {
-    private final Map<CollectorData, DoubleArrayList> data = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 256;
+    // values a data type holds between two drains, anything past it is dropped
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    private final CollectorData[] types;
+    private final Series[] series;
+    // filled once, so reporters find their series without scanning the types
+    private final Map<CollectorData, Series> seriesByType = new IdentityHashMap<>();
+    private final Object drainLock = new Object();
     protected Duration interval = Duration.ofSeconds(5);
 
     public LiveCollector(CollectorData... data) {
+        List<CollectorData> types = new ArrayList<>();
         for (CollectorData datum : data) {
-            this.data.put(datum, new DoubleArrayList());
+            if (!types.contains(datum)) {
+                types.add(datum);
+            }
+        }
+        this.types = types.toArray(new CollectorData[0]);
+        this.series = new Series[this.types.length];
+        for (int i = 0; i < this.series.length; i++) {
+            this.series[i] = new Series(this.types[i].isSummarized());
+            this.seriesByType.put(this.types[i], this.series[i]);
         }
     }
 
@@ -27,7 +63,7 @@ public abstract class LiveCollector extends Collector implements Runnable {
 
     @Override
     public Collection<CollectorData> getDataTypes() {
-        return this.data.keySet();
+        return Collections.unmodifiableList(Arrays.asList(this.types));
     }
 
     @Override
@@ -36,16 +72,206 @@ public abstract class LiveCollector extends Collector implements Runnable {
     }
 
     protected void report(CollectorData collectorData, double data) {
-        synchronized (this.data) {
-            Objects.requireNonNull(this.data.get(collectorData)).addDouble(data);
+        Series series = this.seriesByType.get(collectorData);
+        if (series == null) {
+            throw new IllegalArgumentException("Collector data " + collectorData.getId() + " was not registered with this collector");
+        }
+        while (true) {
+            Buffer buffer = series.current;
+            buffer.writers.incrementAndGet();
+            // the buffer may have been swapped out before the drainer could see us, if so use the new one
+            if (series.current != buffer) {
+                buffer.writers.decrementAndGet();
+                continue;
+            }
+            if (buffer.histogram != null) {
+                buffer.histogram.record(data);
+            } else {
+                int index = buffer.claimed.getAndIncrement();
+                if (index < MAX_CAPACITY) {
+                    buffer.set(index, data);
+                }
+            }
+            buffer.writers.decrementAndGet();
+            return;
         }
     }
 
+    /**
+     * Passes the values reported since the last call to the function, then clears them. Summarized data types are
+     * left out. The lists are only valid until the function returns.
+     */
     public <T> T useDataThenClear(Function<Map<CollectorData, DoubleArrayList>, T> function) {
-        synchronized (this.data) {
-            T returned = function.apply(this.data);
-            this.data.values().forEach(List::clear);
-            return returned;
+        synchronized (this.drainLock) {
+            Buffer[] drained = new Buffer[this.series.length];
+            Map<CollectorData, DoubleArrayList> data = new LinkedHashMap<>();
+            for (int i = 0; i < this.series.length; i++) {
+                if (this.series[i].summarized) {
+                    continue;
+                }
+                drained[i] = this.series[i].swap();
+                data.put(this.types[i], drained[i].values());
+            }
+
+            try {
+                return function.apply(data);
+            } finally {
+                this.recycle(drained);
+            }
+        }
+    }
+
+    /**
+     * Passes the histograms of the summarized data types to the function, then clears them. The histograms are only
+     * valid until the function returns.
+     */
+    public <T> T useSummariesThenClear(Function<Map<CollectorData, StreamingHistogram>, T> function) {
+        synchronized (this.drainLock) {
+            Buffer[] drained = new Buffer[this.series.length];
+            Map<CollectorData, StreamingHistogram> data = new LinkedHashMap<>();
+            for (int i = 0; i < this.series.length; i++) {
+                if (!this.series[i].summarized) {
+                    continue;
+                }
+                drained[i] = this.series[i].swap();
+                data.put(this.types[i], drained[i].histogram);
+            }
+
+            try {
+                return function.apply(data);
+            } finally {
+                this.recycle(drained);
+            }
+        }
+    }
+
+    private void recycle(Buffer[] drained) {
+        for (int i = 0; i < this.series.length; i++) {
+            if (drained[i] != null) {
+                this.series[i].recycle(drained[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns how many values of each data type were dropped since the last call because too many were reported
+     * between two drains, leaving out types without drops.
+     */
+    public Map<CollectorData, Long> getAndResetDropped() {
+        synchronized (this.drainLock) {
+            Map<CollectorData, Long> dropped = new LinkedHashMap<>();
+            for (int i = 0; i < this.series.length; i++) {
+                if (this.series[i].dropped > 0) {
+                    dropped.put(this.types[i], this.series[i].dropped);
+                    this.series[i].dropped = 0;
+                }
+            }
+            return dropped;
+        }
+    }
+
+    private static final class Series {
+        private final boolean summarized;
+        private volatile Buffer current;
+        private Buffer spare;
+        private long dropped;
+
+        private Series(boolean summarized) {
+            this.summarized = summarized;
+            this.current = summarized ? new Buffer(new StreamingHistogram()) : new Buffer(INITIAL_CAPACITY);
+            this.spare = summarized ? new Buffer(new StreamingHistogram()) : new Buffer(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Replaces the current buffer with the spare and waits for writers still appending to the old one.
+         */
+        private Buffer swap() {
+            Buffer buffer = this.current;
+            this.current = this.spare;
+            while (buffer.writers.get() != 0) {
+                Thread.onSpinWait();
+            }
+            return buffer;
+        }
+
+        /**
+         * Turns a drained buffer into the next spare, counting the values it dropped. A buffer that had to grow is
+         * replaced by one whose first chunk holds as many values.
+         */
+        private void recycle(Buffer buffer) {
+            if (buffer.histogram != null) {
+                buffer.histogram.reset();
+                this.spare = buffer;
+                return;
+            }
+            int claimed = buffer.claimed.get();
+            this.dropped += Math.max(0, claimed - MAX_CAPACITY);
+            if (claimed > buffer.capacity && buffer.capacity < MAX_CAPACITY) {
+                this.spare = new Buffer(Math.min(MAX_CAPACITY, Integer.highestOneBit(claimed - 1) << 1));
+            } else {
+                buffer.claimed.set(0);
+                this.spare = buffer;
+            }
+        }
+    }
+
+    private static final class Buffer {
+        // chunk n holds capacity << n values, so growing never moves values that were already written
+        @Nullable
+        private final AtomicReferenceArray<double[]> chunks;
+        private final int capacity;
+        @Nullable
+        private final StreamingHistogram histogram;
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final AtomicInteger writers = new AtomicInteger();
+
+        private Buffer(int capacity) {
+            this.chunks = new AtomicReferenceArray<>(chunkOf(MAX_CAPACITY - 1, capacity) + 1);
+            this.chunks.set(0, new double[capacity]);
+            this.capacity = capacity;
+            this.histogram = null;
+        }
+
+        private Buffer(StreamingHistogram histogram) {
+            this.chunks = null;
+            this.capacity = 0;
+            this.histogram = histogram;
+        }
+
+        private void set(int index, double value) {
+            int chunk = chunkOf(index, this.capacity);
+            int start = this.capacity * ((1 << chunk) - 1);
+            double[] values = this.chunks.get(chunk);
+            if (values == null) {
+                values = new double[Math.min(this.capacity << chunk, MAX_CAPACITY - start)];
+                if (!this.chunks.compareAndSet(chunk, null, values)) {
+                    values = this.chunks.get(chunk);
+                }
+            }
+            values[index - start] = value;
+        }
+
+        /**
+         * Returns the values written to a drained buffer. Only a buffer that had to grow is copied.
+         */
+        private DoubleArrayList values() {
+            int size = Math.min(this.claimed.get(), MAX_CAPACITY);
+            if (size <= this.capacity) {
+                return DoubleArrayList.wrap(this.chunks.get(0), size);
+            }
+            double[] values = new double[size];
+            int copied = 0;
+            for (int chunk = 0; copied < size; chunk++) {
+                double[] part = this.chunks.get(chunk);
+                int length = Math.min(part.length, size - copied);
+                System.arraycopy(part, 0, values, copied, length);
+                copied += length;
+            }
+            return DoubleArrayList.wrap(values, size);
+        }
+
+        private static int chunkOf(int index, int capacity) {
+            return 31 - Integer.numberOfLeadingZeros(index / capacity + 1);
         }
     }
 }
@@ -2,6 +2,7 @@ package co.technove.flare.live.category;
 
 public class GraphCategory {
     public static final GraphCategory SYSTEM = new GraphCategory("System");
+    public static final GraphCategory FLARE = new GraphCategory("Flare");
 
     private final String name;
 
@@ -0,0 +1,135 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.exceptions.UserReportableException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the profile to gzipped files in a local directory. Each file is a sequence of records
+ * {@code [byte type][int length][payload]}, where the type is the ordinal of {@link SinkPayload.Type}. Once a file
+ * grows past its size limit a new one is started, and the oldest files beyond the file limit are deleted.
+ * <p>
+ * Every file can be decoded on its own. Windows only carry the method dictionary entries that are new since the
+ * previous window, and delta windows only the changes to the window before them, so a new file is not started until
+ * the next keyframe window. That window is written with the whole method dictionary, after a copy of the create
+ * payload. With delta windows enabled a file can therefore grow past its size limit by up to a keyframe interval.
+ */
+public class FileProfileSink implements ProfileSink {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 16;
+
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final @NotNull Path directory;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Deque<Path> files = new ArrayDeque<>();
+    private String prefix;
+    private SinkPayload create;
+    // so a new file can start with the whole dictionary
+    private final MergedDictionary dictionary = new MergedDictionary();
+    private DataOutputStream output;
+    private long written;
+    private int records;
+    private int fileIndex;
+
+    public FileProfileSink(@NotNull Path directory) {
+        this(directory, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param maxFileSize uncompressed bytes after which a new file is started
+     * @param maxFiles    how many files of the profile are kept
+     */
+    public FileProfileSink(@NotNull Path directory, long maxFileSize, int maxFiles) {
+        if (maxFileSize < 1 || maxFiles < 1) {
+            throw new IllegalArgumentException("File size and count limits must be positive");
+        }
+        this.directory = Objects.requireNonNull(directory, "Directory must be defined");
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public synchronized void accept(SinkPayload payload) throws UserReportableException {
+        try {
+            if (payload.getType() == SinkPayload.Type.CREATE) {
+                if (this.create != null) {
+                    throw new IllegalStateException("Profile has already been created");
+                }
+                this.create = payload;
+                // profiles started within the same second must not share files
+                this.prefix = "flare-" + LocalDateTime.now().format(FILE_TIME) + "-" + UUID.randomUUID() + "-";
+                Files.createDirectories(this.directory);
+                this.roll();
+                return;
+            }
+            if (this.create == null) {
+                throw new IllegalStateException("Profile has not been created");
+            }
+
+            byte[] data = payload.toByteArray();
+            if (payload.getType() == SinkPayload.Type.WINDOW) {
+                this.dictionary.add(payload);
+                if (this.records > 0 && this.written + data.length > this.maxFileSize && payload.isKeyframe()) {
+                    this.roll();
+                    data = this.dictionary.complete(payload).toByteArray();
+                }
+            }
+            this.write(payload.getType(), data);
+            this.records++;
+        } catch (IOException e) {
+            throw new UserReportableException("Failed to write profile to " + this.directory, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException ignored) {
+            }
+            this.output = null;
+        }
+    }
+
+    private void roll() throws IOException {
+        this.close();
+
+        Path file = this.directory.resolve(this.prefix + this.fileIndex++ + ".flare.gz");
+        OutputStream stream = Files.newOutputStream(file);
+        // sync flushing after every record keeps the file readable up to the last record if the process dies
+        this.output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(stream, true)));
+        this.files.addLast(file);
+        this.written = 0;
+        this.records = 0;
+        while (this.files.size() > this.maxFiles) {
+            Files.deleteIfExists(this.files.removeFirst());
+        }
+
+        this.write(SinkPayload.Type.CREATE, this.create.toByteArray());
+    }
+
+    private void write(SinkPayload.Type type, byte[] data) throws IOException {
+        this.output.writeByte(type.ordinal());
+        this.output.writeInt(data.length);
+        this.output.write(data);
+        this.output.flush();
+        this.written += 1 + Integer.BYTES + data.length;
+    }
+}
@@ -0,0 +1,101 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.Flare;
+import co.technove.flare.FlareAuth;
+import co.technove.flare.exceptions.UserReportableException;
+import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.FlareMetrics;
+import co.technove.flare.internal.profiling.ProfileUploader;
+import co.technove.flare.internal.profiling.ProfilingConnection;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Uploads the profile to a Flare server. Windows and timelines are sent asynchronously, spooling them to disk while
+ * the server is unreachable or falling behind.
+ */
+public class HttpProfileSink implements ProfileSink {
+
+    public static final Path DEFAULT_SPOOL_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "flare-spool");
+    public static final long DEFAULT_SPOOL_LIMIT = 64L * 1024 * 1024;
+
+    private final @NotNull FlareAuth auth;
+    private final @NotNull Path spoolDirectory;
+    private final long spoolLimit;
+    private FlareMetrics metrics = new FlareMetrics();
+    private volatile ProfilingConnection connection;
+    private volatile ProfileUploader uploader;
+
+    public HttpProfileSink(@NotNull FlareAuth auth) {
+        this(auth, DEFAULT_SPOOL_DIRECTORY, DEFAULT_SPOOL_LIMIT);
+    }
+
+    /**
+     * @param spoolDirectory where uploads are spooled while the server can not keep up
+     * @param spoolLimit     how many bytes the spool may use, uploads that do not fit are dropped
+     */
+    public HttpProfileSink(@NotNull FlareAuth auth, @NotNull Path spoolDirectory, long spoolLimit) {
+        if (spoolLimit < 0) {
+            throw new IllegalArgumentException("Spool limit must not be negative");
+        }
+        this.auth = Objects.requireNonNull(auth, "Auth must be defined");
+        this.spoolDirectory = Objects.requireNonNull(spoolDirectory, "Spool directory must be defined");
+        this.spoolLimit = spoolLimit;
+    }
+
+    @Override
+    public synchronized void start(Flare flare) {
+        // count the upload threads towards the Flare they belong to
+        if (flare instanceof FlareInternal) {
+            this.metrics = ((FlareInternal) flare).getMetrics();
+        }
+    }
+
+    @Override
+    public synchronized void accept(SinkPayload payload) throws UserReportableException {
+        switch (payload.getType()) {
+            case CREATE:
+                if (this.connection != null) {
+                    throw new IllegalStateException("Profile has already been created");
+                }
+                this.connection = new ProfilingConnection(this.auth, payload::writeTo, this.metrics);
+                this.uploader = new ProfileUploader(this.connection, this.spoolDirectory, this.spoolLimit, this.metrics);
+                break;
+            case WINDOW:
+                this.getUploader().submit(this.connection.getDataPath(), payload::writeTo);
+                break;
+            case TIMELINE:
+                this.getUploader().submit(this.connection.getTimelinePath(), payload::writeTo);
+                break;
+        }
+    }
+
+    @Override
+    public Optional<URI> getURI() {
+        ProfilingConnection connection = this.connection;
+        if (connection == null) {
+            return Optional.empty();
+        }
+        return Optional.of(this.auth.getUri().resolve("/" + connection.getId()));
+    }
+
+    @Override
+    public void close() {
+        ProfileUploader uploader = this.uploader;
+        if (uploader != null) {
+            uploader.close();
+        }
+    }
+
+    private ProfileUploader getUploader() {
+        if (this.uploader == null) {
+            throw new IllegalStateException("Profile has not been created");
+        }
+        return this.uploader;
+    }
+}
@@ -0,0 +1,112 @@
+package co.technove.flare.sink;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the create payload and the most recent windows and timelines in memory, for handing them to another
+ * pipeline. Once the capacity is reached the oldest payloads are dropped.
+ * <p>
+ * Delta windows can not be decoded without the windows before them, so payloads are dropped a keyframe interval at a
+ * time and the oldest retained window is always a keyframe. With delta windows enabled the capacity can therefore be
+ * exceeded by up to a keyframe interval. Windows only carry the dictionary entries that are new since the previous
+ * window, so once windows were dropped the oldest one is returned with the whole dictionary up to that point.
+ */
+public class MemoryProfileSink implements ProfileSink {
+
+    private final int capacity;
+    private final Deque<Retained> payloads = new ArrayDeque<>();
+    private final MergedDictionary dictionary = new MergedDictionary();
+    private SinkPayload create;
+    private int keyframes;
+    private long overwritten;
+
+    public MemoryProfileSink(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void accept(SinkPayload payload) {
+        if (payload.getType() == SinkPayload.Type.CREATE) {
+            this.create = payload;
+            return;
+        }
+        if (payload.getType() == SinkPayload.Type.WINDOW) {
+            this.dictionary.add(payload);
+            if (payload.isKeyframe()) {
+                this.keyframes++;
+            }
+        }
+        this.payloads.addLast(new Retained(payload, this.dictionary.getEntryCount(), this.dictionary.getPackageCount()));
+
+        // only drop a keyframe if a later one is left to start from, along with the deltas that depend on it
+        while (this.payloads.size() > this.capacity && this.keyframes > 1) {
+            do {
+                Retained dropped = this.payloads.removeFirst();
+                if (dropped.isKeyframe()) {
+                    this.keyframes--;
+                }
+                this.overwritten++;
+            } while (!this.payloads.getFirst().isKeyframe());
+            this.payloads.getFirst().complete = false;
+        }
+    }
+
+    public synchronized @Nullable SinkPayload getCreatePayload() {
+        return this.create;
+    }
+
+    /**
+     * Returns the retained windows and timelines, oldest first.
+     */
+    public synchronized List<SinkPayload> getPayloads() {
+        List<SinkPayload> payloads = new ArrayList<>(this.payloads.size());
+        for (Retained retained : this.payloads) {
+            if (!retained.complete) {
+                try {
+                    retained.payload = this.dictionary.complete(retained.payload, retained.entries, retained.packages);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new UncheckedIOException(e);
+                }
+                retained.complete = true;
+            }
+            payloads.add(retained.payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * Returns how many payloads were dropped to make room for newer ones.
+     */
+    public synchronized long getOverwritten() {
+        return this.overwritten;
+    }
+
+    private static final class Retained {
+        private SinkPayload payload;
+        // size of the merged dictionary once the payload was added
+        private final int entries;
+        private final int packages;
+        // false for the oldest window once the windows before it were dropped, until it is given the whole dictionary
+        private boolean complete = true;
+
+        private Retained(SinkPayload payload, int entries, int packages) {
+            this.payload = payload;
+            this.entries = entries;
+            this.packages = packages;
+        }
+
+        private boolean isKeyframe() {
+            return this.payload.getType() == SinkPayload.Type.WINDOW && this.payload.isKeyframe();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.proto.ProfilerFileProto;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Every method dictionary slice of a profile merged in order, for sinks that drop or split windows. A keyframe can be
+ * made decodable without the windows before it by giving it the dictionary up to and including its own slice. Only
+ * the slices carried by the payloads are read; windows are parsed only when one has to be rewritten.
+ */
+final class MergedDictionary {
+
+    private final ProfilerFileProto.MethodDictionarySlice.Builder dictionary = ProfilerFileProto.MethodDictionarySlice.newBuilder();
+
+    void add(SinkPayload window) {
+        if (window.getDictionary() != null) {
+            this.dictionary.mergeFrom(window.getDictionary());
+        }
+    }
+
+    int getEntryCount() {
+        return this.dictionary.getEntriesCount();
+    }
+
+    int getPackageCount() {
+        return this.dictionary.getPackageEntriesCount();
+    }
+
+    /**
+     * Returns the keyframe with everything merged so far as its dictionary.
+     */
+    SinkPayload complete(SinkPayload keyframe) throws InvalidProtocolBufferException {
+        return this.complete(keyframe, this.getEntryCount(), this.getPackageCount());
+    }
+
+    /**
+     * Returns the keyframe with the first entries and packages merged as its dictionary, which is what had been
+     * merged once it was added.
+     */
+    SinkPayload complete(SinkPayload keyframe, int entries, int packages) throws InvalidProtocolBufferException {
+        if (!keyframe.isKeyframe()) {
+            throw new IllegalArgumentException("Only keyframes can be decoded without the windows before them");
+        }
+        ProfilerFileProto.MethodDictionarySlice slice = ProfilerFileProto.MethodDictionarySlice.newBuilder()
+                .addAllEntries(this.dictionary.getEntriesList().subList(0, entries))
+                .addAllPackageEntries(this.dictionary.getPackageEntriesList().subList(0, packages))
+                .build();
+        ProfilerFileProto.AirplaneProfileFile window = ProfilerFileProto.AirplaneProfileFile.parseFrom(keyframe.toByteArray());
+        byte[] data = window.toBuilder()
+                .setV2(window.getV2().toBuilder().setDictionary(slice))
+                .build()
+                .toByteArray();
+        return new SinkPayload(outputStream -> outputStream.write(data), true, slice);
+    }
+}
@@ -0,0 +1,39 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.Flare;
+import co.technove.flare.exceptions.UserReportableException;
+
+import java.net.URI;
+import java.util.Optional;
+
+/**
+ * Destination for the data of a profile. Several sinks can be registered through
+ * {@link co.technove.flare.FlareBuilder#withSinks(ProfileSink...)}, each one receiving every payload.
+ * <p>
+ * The {@link SinkPayload.Type#CREATE} payload is delivered first, on the thread starting Flare, and failing it fails
+ * the start. All later payloads are delivered in order from a single Flare thread, so a sink should not block it for
+ * long.
+ */
+public interface ProfileSink {
+
+    /**
+     * Called on the thread starting Flare, right before the {@link SinkPayload.Type#CREATE} payload.
+     */
+    default void start(Flare flare) {
+    }
+
+    void accept(SinkPayload payload) throws UserReportableException;
+
+    /**
+     * Returns where the profile can be viewed, if this sink knows.
+     */
+    default Optional<URI> getURI() {
+        return Optional.empty();
+    }
+
+    /**
+     * Called once the profile has ended and every payload has been delivered.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,103 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.proto.ProfilerFileProto;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+
+/**
+ * Serialized data produced by a profile, handed to every {@link ProfileSink}. The body is an uncompressed protobuf
+ * message of {@code ProfileFile.proto}; which one depends on the {@link Type}. A payload may be written any number of
+ * times, so it can be shared between sinks.
+ */
+public final class SinkPayload {
+    private final @NotNull Type type;
+    private final @NotNull Writer writer;
+    private final boolean keyframe;
+    private final @Nullable ProfilerFileProto.MethodDictionarySlice dictionary;
+
+    /**
+     * Creates a create or timeline payload, windows carry more and use
+     * {@link #SinkPayload(Writer, boolean, ProfilerFileProto.MethodDictionarySlice)}.
+     */
+    public SinkPayload(@NotNull Type type, @NotNull Writer writer) {
+        if (type == Type.WINDOW) {
+            throw new IllegalArgumentException("Windows must be created with their dictionary slice");
+        }
+        this.type = Objects.requireNonNull(type, "Type must be defined");
+        this.writer = Objects.requireNonNull(writer, "Writer must be defined");
+        this.keyframe = false;
+        this.dictionary = null;
+    }
+
+    /**
+     * Creates a {@link Type#WINDOW} payload.
+     *
+     * @param keyframe   whether the window is complete, rather than a delta against the window before it
+     * @param dictionary the method dictionary slice the window carries
+     */
+    public SinkPayload(@NotNull Writer writer, boolean keyframe, @NotNull ProfilerFileProto.MethodDictionarySlice dictionary) {
+        this.type = Type.WINDOW;
+        this.writer = Objects.requireNonNull(writer, "Writer must be defined");
+        this.keyframe = keyframe;
+        this.dictionary = Objects.requireNonNull(dictionary, "Dictionary must be defined");
+    }
+
+    public @NotNull Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns whether this is a window that does not depend on the trees of the windows before it. It still only
+     * carries the dictionary entries that are new since the previous window.
+     */
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    /**
+     * Returns the method dictionary slice of a window, without parsing the payload, or null for other payloads.
+     */
+    public @Nullable ProfilerFileProto.MethodDictionarySlice getDictionary() {
+        return dictionary;
+    }
+
+    public void writeTo(@NotNull OutputStream outputStream) throws IOException {
+        this.writer.writeTo(outputStream);
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            this.writer.writeTo(stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return stream.toByteArray();
+    }
+
+    public enum Type {
+        /**
+         * {@code CreateProfile}, always the first payload of a profile.
+         */
+        CREATE,
+        /**
+         * {@code AirplaneProfileFile} for one profiling window. Method dictionary slices are incremental, so decoding
+         * a window requires every window before it.
+         */
+        WINDOW,
+        /**
+         * {@code TimelineFile} with collector data since the previous timeline.
+         */
+        TIMELINE
+    }
+
+    public interface Writer {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+}
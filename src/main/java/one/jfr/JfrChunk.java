@@ -0,0 +1,528 @@
+/*
+ * Copyright 2020 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import one.jfr.event.Event;
+import one.jfr.event.EventRecord;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single chunk of a JFR recording. Every chunk carries its own metadata and constant pool,
+ * so ids found in events are only meaningful within the chunk they were read from.
+ */
+public class JfrChunk {
+    static final int CHUNK_HEADER_SIZE = 68;
+    private static final int CPOOL_OFFSET = 16;
+    private static final int META_OFFSET = 24;
+
+    private final ByteBuffer buf;
+    private final EventRecord cursor = new EventRecord();
+
+    public final long startNanos;
+    public final long durationNanos;
+    public final long startTicks;
+    public final long ticksPerSec;
+
+    public final Dictionary<JfrClass> types;
+    public final Map<String, JfrClass> typesByName;
+    public final Dictionary<String> threads;
+    public final Dictionary<ClassRef> classes;
+    public final Dictionary<byte[]> symbols;
+    public final Dictionary<MethodRef> methods;
+    public final Dictionary<StackTrace> stackTraces;
+    public final Map<Integer, String> frameTypes;
+    public final Map<Integer, String> threadStates;
+
+    private final int executionSample;
+    private final int nativeMethodSample;
+    private final int allocationInNewTLAB;
+    private final int allocationOutsideTLAB;
+    private final int monitorEnter;
+    private final int threadPark;
+
+    JfrChunk(ByteBuffer buf) {
+        this.buf = buf;
+
+        this.types = new Dictionary<>();
+        this.typesByName = new HashMap<>();
+        this.threads = new Dictionary<>();
+        this.classes = new Dictionary<>();
+        this.symbols = new Dictionary<>();
+        this.methods = new Dictionary<>();
+        this.stackTraces = new Dictionary<>();
+        this.frameTypes = new HashMap<>();
+        this.threadStates = new HashMap<>();
+
+        this.startNanos = buf.getLong(32);
+        this.durationNanos = buf.getLong(40);
+        this.startTicks = buf.getLong(48);
+        this.ticksPerSec = buf.getLong(56);
+
+        readMeta();
+        readConstantPool();
+
+        this.executionSample = getTypeId("jdk.ExecutionSample");
+        this.nativeMethodSample = getTypeId("jdk.NativeMethodSample");
+        this.allocationInNewTLAB = getTypeId("jdk.ObjectAllocationInNewTLAB");
+        this.allocationOutsideTLAB = getTypeId("jdk.ObjectAllocationOutsideTLAB");
+        this.monitorEnter = getTypeId("jdk.JavaMonitorEnter");
+        this.threadPark = getTypeId("jdk.ThreadPark");
+
+        buf.position(CHUNK_HEADER_SIZE);
+    }
+
+    private JfrChunk(JfrChunk parent, ByteBuffer buf) {
+        this.buf = buf;
+
+        this.types = parent.types;
+        this.typesByName = parent.typesByName;
+        this.threads = parent.threads;
+        this.classes = parent.classes;
+        this.symbols = parent.symbols;
+        this.methods = parent.methods;
+        this.stackTraces = parent.stackTraces;
+        this.frameTypes = parent.frameTypes;
+        this.threadStates = parent.threadStates;
+
+        this.startNanos = parent.startNanos;
+        this.durationNanos = parent.durationNanos;
+        this.startTicks = parent.startTicks;
+        this.ticksPerSec = parent.ticksPerSec;
+
+        this.executionSample = parent.executionSample;
+        this.nativeMethodSample = parent.nativeMethodSample;
+        this.allocationInNewTLAB = parent.allocationInNewTLAB;
+        this.allocationOutsideTLAB = parent.allocationOutsideTLAB;
+        this.monitorEnter = parent.monitorEnter;
+        this.threadPark = parent.threadPark;
+    }
+
+    public void resetRead() {
+        buf.position(CHUNK_HEADER_SIZE);
+    }
+
+    /**
+     * Splits the records of this chunk into at most {@code parts} ranges of roughly equal size.
+     * Boundaries always fall on record starts, so each range can be read with {@link #slice(int, int)}.
+     *
+     * @return ascending positions, starting at the first record and ending at the end of the chunk
+     */
+    public int[] splitEvents(int parts) {
+        int start = CHUNK_HEADER_SIZE;
+        int end = buf.limit();
+        int[] bounds = new int[parts + 1];
+        bounds[0] = start;
+        int count = 1;
+
+        int saved = buf.position();
+        for (int position = start; position < end; ) {
+            if (count < parts && position >= start + (long) (end - start) * count / parts) {
+                bounds[count++] = position;
+            }
+            buf.position(position);
+            int size = getVarint();
+            if (size <= 0) {
+                break;
+            }
+            position += size;
+        }
+        buf.position(saved);
+
+        bounds[count++] = end;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Returns a view of the records between two positions returned by {@link #splitEvents(int)}.
+     * The view shares this chunk's constant pool but has its own read position, so slices can be read concurrently.
+     */
+    public JfrChunk slice(int from, int to) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return new JfrChunk(this, slice);
+    }
+
+    public List<Event> readAllEvents() {
+        return readAllEvents(null);
+    }
+
+    public <E extends Event> List<E> readAllEvents(Class<E> cls) {
+        ArrayList<E> events = new ArrayList<>();
+        for (E event; (event = readEvent(cls)) != null; ) {
+            events.add(event);
+        }
+        Collections.sort(events);
+        return events;
+    }
+
+    public Event readEvent() {
+        return readEvent((Class<Event>) null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <E extends Event> E readEvent(Class<E> cls) {
+        int type = cls == null ? 0 : EventRecord.typeOf(cls);
+        while (readEvent(cursor)) {
+            if (type == 0 || cursor.type == type) {
+                return (E) cursor.toEvent();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the next supported event into the given record, skipping everything else.
+     *
+     * @return false when the end of the chunk is reached
+     */
+    public boolean readEvent(EventRecord record) {
+        while (buf.hasRemaining()) {
+            int position = buf.position();
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == executionSample || type == nativeMethodSample) {
+                readExecutionSample(record);
+                buf.position(position + size);
+                return true;
+            } else if (type == allocationInNewTLAB) {
+                readAllocationSample(record, true);
+                buf.position(position + size);
+                return true;
+            } else if (type == allocationOutsideTLAB) {
+                readAllocationSample(record, false);
+                buf.position(position + size);
+                return true;
+            } else if (type == monitorEnter) {
+                readContendedLock(record, false);
+                buf.position(position + size);
+                return true;
+            } else if (type == threadPark) {
+                readContendedLock(record, true);
+                buf.position(position + size);
+                return true;
+            }
+
+            buf.position(position + size);
+        }
+        return false;
+    }
+
+    private void readExecutionSample(EventRecord record) {
+        record.type = EventRecord.EXECUTION_SAMPLE;
+        record.time = getVarlong();
+        record.tid = getVarint();
+        record.stackTraceId = getVarint();
+        record.threadState = getVarint();
+    }
+
+    private void readAllocationSample(EventRecord record, boolean tlab) {
+        record.type = EventRecord.ALLOCATION_SAMPLE;
+        record.time = getVarlong();
+        record.tid = getVarint();
+        record.stackTraceId = getVarint();
+        record.classId = getVarint();
+        record.allocationSize = getVarlong();
+        record.tlabSize = tlab ? getVarlong() : 0;
+    }
+
+    private void readContendedLock(EventRecord record, boolean hasTimeout) {
+        record.type = EventRecord.CONTENDED_LOCK;
+        record.time = getVarlong();
+        record.duration = getVarlong();
+        record.tid = getVarint();
+        record.stackTraceId = getVarint();
+        record.classId = getVarint();
+        if (hasTimeout) getVarlong();
+        long address = getVarlong();
+    }
+
+    private void readMeta() {
+        buf.position(buf.getInt(META_OFFSET + 4));
+        getVarint();
+        getVarint();
+        getVarlong();
+        getVarlong();
+        getVarlong();
+
+        String[] strings = new String[getVarint()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = getString();
+        }
+        readElement(strings);
+    }
+
+    private Element readElement(String[] strings) {
+        String name = strings[getVarint()];
+
+        int attributeCount = getVarint();
+        Map<String, String> attributes = new HashMap<>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(strings[getVarint()], strings[getVarint()]);
+        }
+
+        Element e = createElement(name, attributes);
+        int childCount = getVarint();
+        for (int i = 0; i < childCount; i++) {
+            e.addChild(readElement(strings));
+        }
+        return e;
+    }
+
+    private Element createElement(String name, Map<String, String> attributes) {
+        switch (name) {
+            case "class": {
+                JfrClass type = new JfrClass(attributes);
+                if (!attributes.containsKey("superType")) {
+                    types.put(type.id, type);
+                }
+                typesByName.put(type.name, type);
+                return type;
+            }
+            case "field":
+                return new JfrField(attributes);
+            default:
+                return new Element();
+        }
+    }
+
+    private void readConstantPool() {
+        int offset = buf.getInt(CPOOL_OFFSET + 4);
+        while (true) {
+            buf.position(offset);
+            getVarint();
+            getVarint();
+            getVarlong();
+            getVarlong();
+            long delta = getVarlong();
+            getVarint();
+
+            int poolCount = getVarint();
+            for (int i = 0; i < poolCount; i++) {
+                int type = getVarint();
+                readConstants(types.get(type));
+            }
+
+            if (delta == 0) {
+                break;
+            }
+            offset += delta;
+        }
+    }
+
+    private void readConstants(JfrClass type) {
+        switch (type.name) {
+            case "jdk.types.ChunkHeader":
+                buf.position(buf.position() + (CHUNK_HEADER_SIZE + 3));
+                break;
+            case "java.lang.Thread":
+                readThreads(type.field("group") != null);
+                break;
+            case "java.lang.Class":
+                readClasses(type.field("hidden") != null);
+                break;
+            case "jdk.types.Symbol":
+                readSymbols();
+                break;
+            case "jdk.types.Method":
+                readMethods();
+                break;
+            case "jdk.types.StackTrace":
+                readStackTraces();
+                break;
+            case "jdk.types.FrameType":
+                readMap(frameTypes);
+                break;
+            case "jdk.types.ThreadState":
+                readMap(threadStates);
+                break;
+            default:
+                readOtherConstants(type.fields);
+        }
+    }
+
+    private void readThreads(boolean hasGroup) {
+        int count = threads.preallocate(getVarint());
+        for (int i = 0; i < count; i++) {
+            long id = getVarlong();
+            String osName = getString();
+            int osThreadId = getVarint();
+            String javaName = getString();
+            long javaThreadId = getVarlong();
+            if (hasGroup) getVarlong();
+            threads.put(id, javaName != null ? javaName : osName);
+        }
+    }
+
+    private void readClasses(boolean hasHidden) {
+        int count = classes.preallocate(getVarint());
+        for (int i = 0; i < count; i++) {
+            long id = getVarlong();
+            long loader = getVarlong();
+            long name = getVarlong();
+            long pkg = getVarlong();
+            int modifiers = getVarint();
+            if (hasHidden) getVarint();
+            classes.put(id, new ClassRef(name));
+        }
+    }
+
+    private void readMethods() {
+        int count = methods.preallocate(getVarint());
+        for (int i = 0; i < count; i++) {
+            long id = getVarlong();
+            long cls = getVarlong();
+            long name = getVarlong();
+            long sig = getVarlong();
+            int modifiers = getVarint();
+            int hidden = getVarint();
+            methods.put(id, new MethodRef(cls, name, sig));
+        }
+    }
+
+    private void readStackTraces() {
+        int count = stackTraces.preallocate(getVarint());
+        for (int i = 0; i < count; i++) {
+            long id = getVarlong();
+            int truncated = getVarint();
+            StackTrace stackTrace = readStackTrace();
+            stackTraces.put(id, stackTrace);
+        }
+    }
+
+    private StackTrace readStackTrace() {
+        int depth = getVarint();
+        long[] methods = new long[depth];
+        byte[] types = new byte[depth];
+        for (int i = 0; i < depth; i++) {
+            methods[i] = getVarlong();
+            int line = getVarint();
+            int bci = getVarint();
+            types[i] = buf.get();
+        }
+        return new StackTrace(methods, types);
+    }
+
+    private void readSymbols() {
+        int count = symbols.preallocate(getVarint());
+        for (int i = 0; i < count; i++) {
+            long id = getVarlong();
+            if (buf.get() != 3) {
+                throw new IllegalArgumentException("Invalid symbol encoding");
+            }
+            symbols.put(id, getBytes());
+        }
+    }
+
+    private void readMap(Map<Integer, String> map) {
+        int count = getVarint();
+        for (int i = 0; i < count; i++) {
+            map.put(getVarint(), getString());
+        }
+    }
+
+    private void readOtherConstants(List<JfrField> fields) {
+        int stringType = getTypeId("java.lang.String");
+
+        boolean[] numeric = new boolean[fields.size()];
+        for (int i = 0; i < numeric.length; i++) {
+            JfrField f = fields.get(i);
+            numeric[i] = f.constantPool || f.type != stringType;
+        }
+
+        int count = getVarint();
+        for (int i = 0; i < count; i++) {
+            getVarlong();
+            readFields(numeric);
+        }
+    }
+
+    private void readFields(boolean[] numeric) {
+        for (boolean n : numeric) {
+            if (n) {
+                getVarlong();
+            } else {
+                getString();
+            }
+        }
+    }
+
+    private int getTypeId(String typeName) {
+        JfrClass type = typesByName.get(typeName);
+        return type != null ? type.id : -1;
+    }
+
+    private int getVarint() {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private long getVarlong() {
+        long result = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7fL) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        return result | (buf.get() & 0xffL) << 56;
+    }
+
+    private String getString() {
+        switch (buf.get()) {
+            case 0:
+                return null;
+            case 1:
+                return "";
+            case 3:
+                return new String(getBytes(), StandardCharsets.UTF_8);
+            case 4: {
+                char[] chars = new char[getVarint()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) getVarint();
+                }
+                return new String(chars);
+            }
+            case 5:
+                return new String(getBytes(), StandardCharsets.ISO_8859_1);
+            default:
+                throw new IllegalArgumentException("Invalid string encoding");
+        }
+    }
+
+    private byte[] getBytes() {
+        byte[] bytes = new byte[getVarint()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
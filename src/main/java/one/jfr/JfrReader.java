@@ -16,432 +16,198 @@
 
 package one.jfr;
 
-import one.jfr.event.AllocationSample;
-import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
-import one.jfr.event.ExecutionSample;
-
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Parses JFR output produced by async-profiler.
+ * A recording may consist of several chunks; each one is mapped and parsed on its own,
+ * so files larger than 2 GB are supported as long as every single chunk is smaller than that.
  */
-public class JfrReader implements Closeable {
-    private static final int CHUNK_HEADER_SIZE = 68;
-    private static final int CPOOL_OFFSET = 16;
-    private static final int META_OFFSET = 24;
+public class JfrReader implements Closeable, Iterable<JfrChunk> {
+    private static final int CHUNK_SIZE_OFFSET = 8;
+    private static final int START_NANOS_OFFSET = 32;
+    private static final int DURATION_NANOS_OFFSET = 40;
 
     private final FileChannel ch;
-    private final ByteBuffer buf;
+    private final long[] chunkOffsets;
+    private final long[] chunkSizes;
+    private JfrChunk firstChunk;
 
     public final long startNanos;
     public final long durationNanos;
-    public final long startTicks;
-    public final long ticksPerSec;
-
-    public final Dictionary<JfrClass> types = new Dictionary<>();
-    public final Map<String, JfrClass> typesByName = new HashMap<>();
-    public final Dictionary<String> threads = new Dictionary<>();
-    public final Dictionary<ClassRef> classes = new Dictionary<>();
-    public final Dictionary<byte[]> symbols = new Dictionary<>();
-    public final Dictionary<MethodRef> methods = new Dictionary<>();
-    public final Dictionary<StackTrace> stackTraces = new Dictionary<>();
-    public final Map<Integer, String> frameTypes = new HashMap<>();
-    public final Map<Integer, String> threadStates = new HashMap<>();
-
-    private final int executionSample;
-    private final int nativeMethodSample;
-    private final int allocationInNewTLAB;
-    private final int allocationOutsideTLAB;
-    private final int monitorEnter;
-    private final int threadPark;
 
     public JfrReader(String fileName) throws IOException {
         this.ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        this.buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
-
-        if (buf.getInt(0) != 0x464c5200) {
-            throw new IOException("Not a valid JFR file");
-        }
-
-        int version = buf.getInt(4);
-        if (version < 0x20000 || version > 0x2ffff) {
-            throw new IOException("Unsupported JFR version: " + (version >>> 16) + "." + (version & 0xffff));
-        }
-
-        buf.limit((int) buf.getLong(8));
-
-        this.startNanos = buf.getLong(32);
-        this.durationNanos = buf.getLong(40);
-        this.startTicks = buf.getLong(48);
-        this.ticksPerSec = buf.getLong(56);
-
-        readMeta();
-        readConstantPool();
-
-        this.executionSample = getTypeId("jdk.ExecutionSample");
-        this.nativeMethodSample = getTypeId("jdk.NativeMethodSample");
-        this.allocationInNewTLAB = getTypeId("jdk.ObjectAllocationInNewTLAB");
-        this.allocationOutsideTLAB = getTypeId("jdk.ObjectAllocationOutsideTLAB");
-        this.monitorEnter = getTypeId("jdk.JavaMonitorEnter");
-        this.threadPark = getTypeId("jdk.ThreadPark");
-
-        buf.position(CHUNK_HEADER_SIZE);
-    }
 
-    public void resetRead() {
-        buf.position(CHUNK_HEADER_SIZE);
-    }
-
-    @Override
-    public void close() throws IOException {
-        ch.close();
-    }
-
-    public List<Event> readAllEvents() {
-        return readAllEvents(null);
-    }
-
-    public <E extends Event> List<E> readAllEvents(Class<E> cls) {
-        ArrayList<E> events = new ArrayList<>();
-        for (E event; (event = readEvent(cls)) != null; ) {
-            events.add(event);
-        }
-        Collections.sort(events);
-        return events;
-    }
-
-    public Event readEvent() {
-        return readEvent(null);
-    }
-
-    @SuppressWarnings("unchecked")
-    public <E extends Event> E readEvent(Class<E> cls) {
-        while (buf.hasRemaining()) {
-            int position = buf.position();
-            int size = getVarint();
-            int type = getVarint();
-
-            if (type == executionSample || type == nativeMethodSample) {
-                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample();
-            } else if (type == allocationInNewTLAB) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(true);
-            } else if (type == allocationOutsideTLAB) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(false);
-            } else if (type == monitorEnter) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(false);
-            } else if (type == threadPark) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(true);
-            }
-
-            buf.position(position + size);
-        }
-        return null;
-    }
-
-    private ExecutionSample readExecutionSample() {
-        long time = getVarlong();
-        int tid = getVarint();
-        int stackTraceId = getVarint();
-        int threadState = getVarint();
-        return new ExecutionSample(time, tid, stackTraceId, threadState);
-    }
-
-    private AllocationSample readAllocationSample(boolean tlab) {
-        long time = getVarlong();
-        int tid = getVarint();
-        int stackTraceId = getVarint();
-        int classId = getVarint();
-        long allocationSize = getVarlong();
-        long tlabSize = tlab ? getVarlong() : 0;
-        return new AllocationSample(time, tid, stackTraceId, classId, allocationSize, tlabSize);
-    }
-
-    private ContendedLock readContendedLock(boolean hasTimeout) {
-        long time = getVarlong();
-        long duration = getVarlong();
-        int tid = getVarint();
-        int stackTraceId = getVarint();
-        int classId = getVarint();
-        if (hasTimeout) getVarlong();
-        long address = getVarlong();
-        return new ContendedLock(time, tid, stackTraceId, duration, classId);
-    }
-
-    private void readMeta() {
-        buf.position(buf.getInt(META_OFFSET + 4));
-        getVarint();
-        getVarint();
-        getVarlong();
-        getVarlong();
-        getVarlong();
-
-        String[] strings = new String[getVarint()];
-        for (int i = 0; i < strings.length; i++) {
-            strings[i] = getString();
-        }
-        readElement(strings);
-    }
-
-    private Element readElement(String[] strings) {
-        String name = strings[getVarint()];
+        try {
+            long fileSize = ch.size();
+            long[] offsets = new long[4];
+            long[] sizes = new long[4];
+            int count = 0;
+            long startNanos = 0;
+            long endNanos = 0;
+
+            ByteBuffer header = ByteBuffer.allocate(JfrChunk.CHUNK_HEADER_SIZE);
+            for (long offset = 0; offset + JfrChunk.CHUNK_HEADER_SIZE <= fileSize; ) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (ch.read(header, offset + header.position()) < 0) {
+                        throw new IOException("Unexpected end of JFR file");
+                    }
+                }
 
-        int attributeCount = getVarint();
-        Map<String, String> attributes = new HashMap<>(attributeCount);
-        for (int i = 0; i < attributeCount; i++) {
-            attributes.put(strings[getVarint()], strings[getVarint()]);
-        }
+                if (header.getInt(0) != 0x464c5200) {
+                    throw new IOException("Not a valid JFR file");
+                }
 
-        Element e = createElement(name, attributes);
-        int childCount = getVarint();
-        for (int i = 0; i < childCount; i++) {
-            e.addChild(readElement(strings));
-        }
-        return e;
-    }
+                int version = header.getInt(4);
+                if (version < 0x20000 || version > 0x2ffff) {
+                    throw new IOException("Unsupported JFR version: " + (version >>> 16) + "." + (version & 0xffff));
+                }
 
-    private Element createElement(String name, Map<String, String> attributes) {
-        switch (name) {
-            case "class": {
-                JfrClass type = new JfrClass(attributes);
-                if (!attributes.containsKey("superType")) {
-                    types.put(type.id, type);
+                long size = header.getLong(CHUNK_SIZE_OFFSET);
+                if (size < JfrChunk.CHUNK_HEADER_SIZE || offset + size > fileSize) {
+                    break; // chunk is still being written or the file is truncated
+                }
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("JFR chunk is too large: " + size + " bytes");
                 }
-                typesByName.put(type.name, type);
-                return type;
-            }
-            case "field":
-                return new JfrField(attributes);
-            default:
-                return new Element();
-        }
-    }
 
-    private void readConstantPool() {
-        int offset = buf.getInt(CPOOL_OFFSET + 4);
-        while (true) {
-            buf.position(offset);
-            getVarint();
-            getVarint();
-            getVarlong();
-            getVarlong();
-            long delta = getVarlong();
-            getVarint();
+                long chunkStart = header.getLong(START_NANOS_OFFSET);
+                long chunkEnd = chunkStart + header.getLong(DURATION_NANOS_OFFSET);
+                if (count == 0 || chunkStart < startNanos) startNanos = chunkStart;
+                if (count == 0 || chunkEnd > endNanos) endNanos = chunkEnd;
 
-            int poolCount = getVarint();
-            for (int i = 0; i < poolCount; i++) {
-                int type = getVarint();
-                readConstants(types.get(type));
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    sizes = Arrays.copyOf(sizes, count * 2);
+                }
+                offsets[count] = offset;
+                sizes[count] = size;
+                count++;
+                offset += size;
             }
 
-            if (delta == 0) {
-                break;
+            if (count == 0) {
+                throw new IOException("Not a valid JFR file");
             }
-            offset += delta;
-        }
-    }
 
-    private void readConstants(JfrClass type) {
-        switch (type.name) {
-            case "jdk.types.ChunkHeader":
-                buf.position(buf.position() + (CHUNK_HEADER_SIZE + 3));
-                break;
-            case "java.lang.Thread":
-                readThreads(type.field("group") != null);
-                break;
-            case "java.lang.Class":
-                readClasses(type.field("hidden") != null);
-                break;
-            case "jdk.types.Symbol":
-                readSymbols();
-                break;
-            case "jdk.types.Method":
-                readMethods();
-                break;
-            case "jdk.types.StackTrace":
-                readStackTraces();
-                break;
-            case "jdk.types.FrameType":
-                readMap(frameTypes);
-                break;
-            case "jdk.types.ThreadState":
-                readMap(threadStates);
-                break;
-            default:
-                readOtherConstants(type.fields);
+            this.chunkOffsets = Arrays.copyOf(offsets, count);
+            this.chunkSizes = Arrays.copyOf(sizes, count);
+            this.startNanos = startNanos;
+            this.durationNanos = endNanos - startNanos;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
         }
     }
 
-    private void readThreads(boolean hasGroup) {
-        int count = threads.preallocate(getVarint());
-        for (int i = 0; i < count; i++) {
-            long id = getVarlong();
-            String osName = getString();
-            int osThreadId = getVarint();
-            String javaName = getString();
-            long javaThreadId = getVarlong();
-            if (hasGroup) getVarlong();
-            threads.put(id, javaName != null ? javaName : osName);
-        }
-    }
-
-    private void readClasses(boolean hasHidden) {
-        int count = classes.preallocate(getVarint());
-        for (int i = 0; i < count; i++) {
-            long id = getVarlong();
-            long loader = getVarlong();
-            long name = getVarlong();
-            long pkg = getVarlong();
-            int modifiers = getVarint();
-            if (hasHidden) getVarint();
-            classes.put(id, new ClassRef(name));
-        }
-    }
-
-    private void readMethods() {
-        int count = methods.preallocate(getVarint());
-        for (int i = 0; i < count; i++) {
-            long id = getVarlong();
-            long cls = getVarlong();
-            long name = getVarlong();
-            long sig = getVarlong();
-            int modifiers = getVarint();
-            int hidden = getVarint();
-            methods.put(id, new MethodRef(cls, name, sig));
-        }
+    public int getChunkCount() {
+        return chunkOffsets.length;
     }
 
-    private void readStackTraces() {
-        int count = stackTraces.preallocate(getVarint());
-        for (int i = 0; i < count; i++) {
-            long id = getVarlong();
-            int truncated = getVarint();
-            StackTrace stackTrace = readStackTrace();
-            stackTraces.put(id, stackTrace);
-        }
+    /**
+     * Maps and parses the metadata and constant pool of the chunk at the given index.
+     */
+    public JfrChunk readChunk(int index) throws IOException {
+        return new JfrChunk(ch.map(FileChannel.MapMode.READ_ONLY, chunkOffsets[index], chunkSizes[index]));
     }
 
-    private StackTrace readStackTrace() {
-        int depth = getVarint();
-        long[] methods = new long[depth];
-        byte[] types = new byte[depth];
-        for (int i = 0; i < depth; i++) {
-            methods[i] = getVarlong();
-            int line = getVarint();
-            int bci = getVarint();
-            types[i] = buf.get();
-        }
-        return new StackTrace(methods, types);
-    }
+    /**
+     * Iterates over all chunks of the recording, mapping each one lazily.
+     * I/O errors are rethrown as {@link UncheckedIOException}.
+     */
+    @Override
+    public Iterator<JfrChunk> iterator() {
+        return new Iterator<JfrChunk>() {
+            private int index;
 
-    private void readSymbols() {
-        int count = symbols.preallocate(getVarint());
-        for (int i = 0; i < count; i++) {
-            long id = getVarlong();
-            if (buf.get() != 3) {
-                throw new IllegalArgumentException("Invalid symbol encoding");
+            @Override
+            public boolean hasNext() {
+                return index < chunkOffsets.length;
             }
-            symbols.put(id, getBytes());
-        }
-    }
 
-    private void readMap(Map<Integer, String> map) {
-        int count = getVarint();
-        for (int i = 0; i < count; i++) {
-            map.put(getVarint(), getString());
-        }
+            @Override
+            public JfrChunk next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return readChunk(index++);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
     }
 
-    private void readOtherConstants(List<JfrField> fields) {
-        int stringType = getTypeId("java.lang.String");
-
-        boolean[] numeric = new boolean[fields.size()];
-        for (int i = 0; i < numeric.length; i++) {
-            JfrField f = fields.get(i);
-            numeric[i] = f.constantPool || f.type != stringType;
-        }
-
-        int count = getVarint();
-        for (int i = 0; i < count; i++) {
-            getVarlong();
-            readFields(numeric);
-        }
+    /**
+     * Reads from the first chunk only, as before recordings with several chunks were supported.
+     *
+     * @deprecated read every chunk through {@link #readChunk(int)} or by iterating over the reader
+     */
+    @Deprecated
+    public void resetRead() {
+        firstChunk().resetRead();
     }
 
-    private void readFields(boolean[] numeric) {
-        for (boolean n : numeric) {
-            if (n) {
-                getVarlong();
-            } else {
-                getString();
-            }
-        }
+    /**
+     * @deprecated see {@link #resetRead()}
+     */
+    @Deprecated
+    public List<Event> readAllEvents() {
+        return firstChunk().readAllEvents();
     }
 
-    private int getTypeId(String typeName) {
-        JfrClass type = typesByName.get(typeName);
-        return type != null ? type.id : -1;
+    /**
+     * @deprecated see {@link #resetRead()}
+     */
+    @Deprecated
+    public <E extends Event> List<E> readAllEvents(Class<E> cls) {
+        return firstChunk().readAllEvents(cls);
     }
 
-    private int getVarint() {
-        int result = 0;
-        for (int shift = 0; ; shift += 7) {
-            byte b = buf.get();
-            result |= (b & 0x7f) << shift;
-            if (b >= 0) {
-                return result;
-            }
-        }
+    /**
+     * @deprecated see {@link #resetRead()}
+     */
+    @Deprecated
+    public Event readEvent() {
+        return firstChunk().readEvent();
     }
 
-    private long getVarlong() {
-        long result = 0;
-        for (int shift = 0; shift < 56; shift += 7) {
-            byte b = buf.get();
-            result |= (b & 0x7fL) << shift;
-            if (b >= 0) {
-                return result;
-            }
-        }
-        return result | (buf.get() & 0xffL) << 56;
+    /**
+     * @deprecated see {@link #resetRead()}
+     */
+    @Deprecated
+    public <E extends Event> E readEvent(Class<E> cls) {
+        return firstChunk().readEvent(cls);
     }
 
-    private String getString() {
-        switch (buf.get()) {
-            case 0:
-                return null;
-            case 1:
-                return "";
-            case 3:
-                return new String(getBytes(), StandardCharsets.UTF_8);
-            case 4: {
-                char[] chars = new char[getVarint()];
-                for (int i = 0; i < chars.length; i++) {
-                    chars[i] = (char) getVarint();
-                }
-                return new String(chars);
+    // kept across calls, so the old methods go on from where the last one stopped
+    private JfrChunk firstChunk() {
+        if (firstChunk == null) {
+            try {
+                firstChunk = readChunk(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            case 5:
-                return new String(getBytes(), StandardCharsets.ISO_8859_1);
-            default:
-                throw new IllegalArgumentException("Invalid string encoding");
         }
+        return firstChunk;
     }
 
-    private byte[] getBytes() {
-        byte[] bytes = new byte[getVarint()];
-        buf.get(bytes);
-        return bytes;
+    @Override
+    public void close() throws IOException {
+        ch.close();
     }
 }
@@ -16,12 +16,18 @@
 
 package one.jfr.event;
 
+/**
+ * Open addressing map from (stack trace, thread, group) to the aggregated value.
+ * Keys are stored as primitives, so collecting does not retain or allocate events.
+ */
 public class EventAggregator {
     private static final int INITIAL_CAPACITY = 1024;
 
     private final boolean threads;
     private final boolean total;
-    private Event[] keys;
+    private int[] stackTraceIds;
+    private int[] tids;
+    private long[] groups;
     private long[] values;
     private long[] samples;
     private int size;
@@ -29,68 +35,137 @@ public class EventAggregator {
     public EventAggregator(boolean threads, boolean total) {
         this.threads = threads;
         this.total = total;
-        this.keys = new Event[INITIAL_CAPACITY];
+        this.stackTraceIds = new int[INITIAL_CAPACITY];
+        this.tids = new int[INITIAL_CAPACITY];
+        this.groups = new long[INITIAL_CAPACITY];
         this.values = new long[INITIAL_CAPACITY];
         this.samples = new long[INITIAL_CAPACITY];
     }
 
     public void collect(Event e) {
-        int mask = keys.length - 1;
-        int i = hashCode(e) & mask;
-        while (keys[i] != null) {
-            if (sameGroup(keys[i], e)) {
-                values[i] += total ? e.value() : 1;
-                samples[i]++;
+        collect(e.stackTraceId, e.tid, groupKey(e), e.value());
+    }
+
+    public void collect(EventRecord r) {
+        collect(r.stackTraceId, r.tid, r.groupKey(), r.value());
+    }
+
+    public void collect(int stackTraceId, int tid, long group, long value) {
+        add(stackTraceId, tid, group, total ? value : 1, 1);
+    }
+
+    /**
+     * Adds everything collected by another aggregator over the same chunk into this one.
+     */
+    public void merge(EventAggregator other) {
+        for (int i = 0; i < other.samples.length; i++) {
+            if (other.samples[i] != 0) {
+                add(other.stackTraceIds[i], other.tids[i], other.groups[i], other.values[i], other.samples[i]);
+            }
+        }
+    }
+
+    private void add(int stackTraceId, int tid, long group, long value, long count) {
+        int mask = samples.length - 1;
+        int i = hashCode(stackTraceId, tid, group) & mask;
+        while (samples[i] != 0) {
+            if (sameGroup(i, stackTraceId, tid, group)) {
+                values[i] += value;
+                samples[i] += count;
                 return;
             }
             i = (i + 1) & mask;
         }
 
-        keys[i] = e;
-        values[i] = total ? e.value() : 1;
-        samples[i] = 1;
+        stackTraceIds[i] = stackTraceId;
+        tids[i] = tid;
+        groups[i] = group;
+        values[i] = value;
+        samples[i] = count;
 
-        if (++size * 2 > keys.length) {
-            resize(keys.length * 2);
+        if (++size * 2 > samples.length) {
+            resize(samples.length * 2);
         }
     }
 
     public long getValue(Event e) {
-        int mask = keys.length - 1;
-        int i = hashCode(e) & mask;
-        while (keys[i] != null && !sameGroup(keys[i], e)) {
+        long group = groupKey(e);
+        int mask = samples.length - 1;
+        int i = hashCode(e.stackTraceId, e.tid, group) & mask;
+        while (samples[i] != 0 && !sameGroup(i, e.stackTraceId, e.tid, group)) {
             i = (i + 1) & mask;
         }
         return values[i];
     }
 
+    public void forEach(GroupVisitor visitor) {
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] != 0) {
+                visitor.visit(stackTraceIds[i], tids[i], values[i], samples[i]);
+            }
+        }
+    }
+
+    /**
+     * Visits every group with an event standing in for it, as when events were the keys. Only what events are
+     * grouped by is kept, so the event has no time, size or thread state; {@link #forEach(GroupVisitor)} does not
+     * allocate them at all.
+     */
     public void forEach(Visitor visitor) {
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] != null) {
-                visitor.visit(keys[i], values[i], samples[i]);
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] != 0) {
+                visitor.visit(toEvent(i), values[i], samples[i]);
             }
         }
     }
 
-    private int hashCode(Event e) {
-        return e.hashCode() + (threads ? e.tid * 31 : 0);
+    private Event toEvent(int i) {
+        long group = groups[i];
+        int classId = (int) group;
+        switch ((int) (group >>> 40)) {
+            case EventRecord.ALLOCATION_SAMPLE:
+                // any TLAB size keeps it apart from allocations outside TLABs
+                return new AllocationSample(0, tids[i], stackTraceIds[i], classId, 0, (group & 1L << 32) != 0 ? 1 : 0);
+            case EventRecord.CONTENDED_LOCK:
+                return new ContendedLock(0, tids[i], stackTraceIds[i], 0, classId);
+            default:
+                return new ExecutionSample(0, tids[i], stackTraceIds[i], 0);
+        }
     }
 
-    private boolean sameGroup(Event e1, Event e2) {
-        return e1.stackTraceId == e2.stackTraceId && (!threads || e1.tid == e2.tid) && e1.sameGroup(e2);
+    private static long groupKey(Event e) {
+        if (e instanceof AllocationSample) {
+            AllocationSample a = (AllocationSample) e;
+            return EventRecord.groupKey(EventRecord.ALLOCATION_SAMPLE, a.classId, a.tlabSize != 0);
+        } else if (e instanceof ContendedLock) {
+            return EventRecord.groupKey(EventRecord.CONTENDED_LOCK, ((ContendedLock) e).classId, false);
+        }
+        return EventRecord.groupKey(EventRecord.EXECUTION_SAMPLE, 0, false);
+    }
+
+    private int hashCode(int stackTraceId, int tid, long group) {
+        return stackTraceId + (int) (group ^ (group >>> 32)) * 127 + (threads ? tid * 31 : 0);
+    }
+
+    private boolean sameGroup(int i, int stackTraceId, int tid, long group) {
+        return stackTraceIds[i] == stackTraceId && (!threads || tids[i] == tid) && groups[i] == group;
     }
 
     private void resize(int newCapacity) {
-        Event[] newKeys = new Event[newCapacity];
+        int[] newStackTraceIds = new int[newCapacity];
+        int[] newTids = new int[newCapacity];
+        long[] newGroups = new long[newCapacity];
         long[] newValues = new long[newCapacity];
         long[] newSamples = new long[newCapacity];
-        int mask = newKeys.length - 1;
+        int mask = newCapacity - 1;
 
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] != null) {
-                for (int j = hashCode(keys[i]) & mask; ; j = (j + 1) & mask) {
-                    if (newKeys[j] == null) {
-                        newKeys[j] = keys[i];
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] != 0) {
+                for (int j = hashCode(stackTraceIds[i], tids[i], groups[i]) & mask; ; j = (j + 1) & mask) {
+                    if (newSamples[j] == 0) {
+                        newStackTraceIds[j] = stackTraceIds[i];
+                        newTids[j] = tids[i];
+                        newGroups[j] = groups[i];
                         newValues[j] = values[i];
                         newSamples[j] = samples[i];
                         break;
@@ -99,7 +174,9 @@ public class EventAggregator {
             }
         }
 
-        keys = newKeys;
+        stackTraceIds = newStackTraceIds;
+        tids = newTids;
+        groups = newGroups;
         values = newValues;
         samples = newSamples;
     }
@@ -107,4 +184,8 @@ public class EventAggregator {
     public interface Visitor {
         void visit(Event event, long value, long samples);
     }
+
+    public interface GroupVisitor {
+        void visit(int stackTraceId, int tid, long value, long samples);
+    }
 }
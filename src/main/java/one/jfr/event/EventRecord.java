@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+/**
+ * Mutable event that is filled in place by the reader, so decoding does not allocate per record.
+ * Fields that do not belong to the current {@link #type} are left untouched.
+ */
+public final class EventRecord {
+    public static final int EXECUTION_SAMPLE = 1;
+    public static final int ALLOCATION_SAMPLE = 2;
+    public static final int CONTENDED_LOCK = 3;
+
+    public int type;
+    public long time;
+    public int tid;
+    public int stackTraceId;
+
+    public int threadState;
+    public int classId;
+    public long allocationSize;
+    public long tlabSize;
+    public long duration;
+
+    public static int typeOf(Class<? extends Event> cls) {
+        if (cls == ExecutionSample.class) return EXECUTION_SAMPLE;
+        if (cls == AllocationSample.class) return ALLOCATION_SAMPLE;
+        if (cls == ContendedLock.class) return CONTENDED_LOCK;
+        throw new IllegalArgumentException("Unknown event class " + cls);
+    }
+
+    /**
+     * Key of the group this event is aggregated into, besides its stack trace and thread.
+     * Matches {@link Event#sameGroup(Event)} of the corresponding event class.
+     */
+    public static long groupKey(int type, int classId, boolean tlab) {
+        switch (type) {
+            case ALLOCATION_SAMPLE:
+                return (long) type << 40 | (tlab ? 1L << 32 : 0) | (classId & 0xffffffffL);
+            case CONTENDED_LOCK:
+                return (long) type << 40 | (classId & 0xffffffffL);
+            default:
+                return (long) type << 40;
+        }
+    }
+
+    public long groupKey() {
+        return groupKey(type, classId, tlabSize != 0);
+    }
+
+    public long value() {
+        switch (type) {
+            case ALLOCATION_SAMPLE:
+                return tlabSize != 0 ? tlabSize : allocationSize;
+            case CONTENDED_LOCK:
+                return duration;
+            default:
+                return 1;
+        }
+    }
+
+    public Event toEvent() {
+        switch (type) {
+            case EXECUTION_SAMPLE:
+                return new ExecutionSample(time, tid, stackTraceId, threadState);
+            case ALLOCATION_SAMPLE:
+                return new AllocationSample(time, tid, stackTraceId, classId, allocationSize, tlabSize);
+            case CONTENDED_LOCK:
+                return new ContendedLock(time, tid, stackTraceId, duration, classId);
+            default:
+                throw new IllegalStateException("No event has been read");
+        }
+    }
+}
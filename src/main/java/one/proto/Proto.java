@@ -20,7 +20,7 @@ import java.util.Arrays;
 
 /**
  * Simplified implementation of Protobuf writer, capable of encoding
- * varints, doubles, ASCII strings and embedded messages
+ * varints, doubles, UTF-8 strings, packed doubles and embedded messages
  */
 public class Proto {
     private byte[] buf;
@@ -48,6 +48,18 @@ public class Proto {
         return this;
     }
 
+    public Proto field(int index, boolean b) {
+        tag(index, 0);
+        writeInt(b ? 1 : 0);
+        return this;
+    }
+
+    public Proto field(int index, long n) {
+        tag(index, 0);
+        writeLong(n);
+        return this;
+    }
+
     public Proto field(int index, double d) {
         tag(index, 1);
         writeDouble(d);
@@ -72,11 +84,46 @@ public class Proto {
         return this;
     }
 
+    public Proto field(int index, double[] values, int offset, int length) {
+        tag(index, 2);
+        writeInt(length * 8);
+        ensureCapacity(length * 8);
+        for (int i = offset; i < offset + length; i++) {
+            writeDouble(values[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the tag and length of a length-delimited field, such as an embedded message or packed values,
+     * whose contents must be written next
+     */
+    public Proto header(int index, int length) {
+        tag(index, 2);
+        writeInt(length);
+        return this;
+    }
+
+    /**
+     * Writes n as an unsigned varint
+     */
     public void writeInt(int n) {
-        int length = n == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(n)) / 7;
-        ensureCapacity(length);
+        ensureCapacity(sizeOfInt(n));
 
-        while (n > 0x7f) {
+        while ((n & ~0x7f) != 0) {
+            buf[pos++] = (byte) (0x80 | (n & 0x7f));
+            n >>>= 7;
+        }
+        buf[pos++] = (byte) n;
+    }
+
+    /**
+     * Writes n as an unsigned varint
+     */
+    public void writeLong(long n) {
+        ensureCapacity(sizeOfLong(n));
+
+        while ((n & ~0x7fL) != 0) {
             buf[pos++] = (byte) (0x80 | (n & 0x7f));
             n >>>= 7;
         }
@@ -99,11 +146,31 @@ public class Proto {
 
     public void writeString(String s) {
         int length = s.length();
-        writeInt(length);
-        ensureCapacity(length);
+        int utf8Length = utf8Length(s);
+        writeInt(utf8Length);
+        ensureCapacity(utf8Length);
 
         for (int i = 0; i < length; i++) {
-            buf[pos++] = (byte) s.charAt(i);
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | c >>> 6);
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | cp >>> 18);
+                buf[pos++] = (byte) (0x80 | (cp >>> 12 & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp >>> 6 & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, replaced like String.getBytes does
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | c >>> 12);
+                buf[pos++] = (byte) (0x80 | (c >>> 6 & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
         }
     }
 
@@ -115,8 +182,43 @@ public class Proto {
     }
 
     private void tag(int index, int type) {
-        ensureCapacity(1);
-        buf[pos++] = (byte) (index << 3 | type);
+        writeInt(index << 3 | type);
+    }
+
+    public static int sizeOfInt(int n) {
+        return n == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(n)) / 7;
+    }
+
+    public static int sizeOfLong(long n) {
+        return n == 0 ? 1 : (70 - Long.numberOfLeadingZeros(n)) / 7;
+    }
+
+    /**
+     * Size of a string including its length
+     */
+    public static int sizeOfString(String s) {
+        int length = utf8Length(s);
+        return sizeOfInt(length) + length;
+    }
+
+    private static int utf8Length(String s) {
+        int length = s.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // four bytes for the pair
+                    utf8Length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    utf8Length += 2;
+                }
+            } else if (c >= 0x80) {
+                utf8Length++;
+            }
+        }
+        return utf8Length;
     }
 
     private void ensureCapacity(int length) {
@@ -0,0 +1,116 @@
+package co.technove.flare.collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ThreadStateTest {
+
+    private final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    private boolean wasEnabled;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(this.bean.isThreadCpuTimeSupported());
+        this.wasEnabled = this.bean.isThreadCpuTimeEnabled();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.bean.setThreadCpuTimeEnabled(this.wasEnabled);
+    }
+
+    @Test
+    void leavesCpuTimeSettingAlone() {
+        this.bean.setThreadCpuTimeEnabled(false);
+        ThreadState state = new ThreadState(false);
+        state.run();
+        state.run();
+        assertFalse(this.bean.isThreadCpuTimeEnabled());
+    }
+
+    @Test
+    void threadBlockedInSocketReadIsIdle() throws Exception {
+        this.assertSocketReaderIdle(false);
+    }
+
+    @Test
+    void threadBlockedInSocketReadIsIdleWithCpuTime() throws Exception {
+        this.assertSocketReaderIdle(true);
+    }
+
+    // a thread blocked reading a socket is runnable, so only its top frame tells that it is idle
+    private void assertSocketReaderIdle(boolean cpuTime) throws Exception {
+        this.bean.setThreadCpuTimeEnabled(cpuTime);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            Thread reader = new Thread(() -> {
+                try (InputStream in = client.getInputStream()) {
+                    in.read();
+                } catch (IOException ignored) {
+                    // closed by the test
+                }
+            });
+            reader.start();
+            try {
+                while (reader.getState() != Thread.State.RUNNABLE || !isReading(reader)) {
+                    Thread.sleep(10);
+                }
+
+                ThreadState state = new ThreadState(false);
+                for (int i = 0; i < 3; i++) {
+                    state.run();
+                    assertFalse(state.getActiveThreads().contains(reader), "reader counted as active in scan " + i);
+                    Thread.sleep(20);
+                }
+            } finally {
+                client.close();
+                reader.join();
+            }
+        }
+    }
+
+    // blocked in the native read, or the poll before it
+    private static boolean isReading(Thread thread) {
+        StackTraceElement[] stack = thread.getStackTrace();
+        return stack.length > 0 && stack[0].isNativeMethod();
+    }
+
+    @Test
+    void followsChangingThreadCount() throws Exception {
+        this.bean.setThreadCpuTimeEnabled(true);
+        ThreadState state = new ThreadState(false);
+        CountDownLatch stop = new CountDownLatch(1);
+        Thread spinner = new Thread(() -> {
+            while (stop.getCount() > 0) {
+                Thread.onSpinWait();
+            }
+        });
+        state.run();
+        spinner.start();
+        try {
+            Thread.sleep(50);
+            state.run();
+            assertTrue(state.getActiveThreads().contains(spinner));
+        } finally {
+            stop.countDown();
+            spinner.join();
+        }
+        state.run();
+        assertFalse(state.getActiveThreads().contains(spinner));
+    }
+}
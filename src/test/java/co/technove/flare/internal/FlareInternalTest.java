@@ -0,0 +1,47 @@
+package co.technove.flare.internal;
+
+import co.technove.flare.FlareStats;
+import co.technove.flare.internal.profiling.ProfileType;
+import co.technove.flare.sink.MemoryProfileSink;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FlareInternalTest {
+
+    @Test
+    void identifiesEachClassOnce() {
+        AtomicInteger lookups = new AtomicInteger();
+        FlareInternal flare = create(className -> {
+            lookups.incrementAndGet();
+            return className.startsWith("com.example.") ? Optional.of("Example") : Optional.empty();
+        });
+
+        assertEquals(Optional.of("Example"), flare.getPluginForClass("com.example.Main"));
+        assertEquals(Optional.of("Example"), flare.getPluginForClass("com.example.Main"));
+        assertEquals(1, lookups.get());
+
+        // classes without a plugin are cached too
+        assertEquals(Optional.empty(), flare.getPluginForClass("java.lang.Object"));
+        assertEquals(Optional.empty(), flare.getPluginForClass("java.lang.Object"));
+        assertEquals(2, lookups.get());
+
+        FlareStats stats = flare.getStats();
+        assertEquals(2, stats.getPluginCacheHits());
+        assertEquals(2, stats.getPluginCacheMisses());
+        flare.getIntervalManager().cancel();
+    }
+
+    private static FlareInternal create(Function<String, Optional<String>> classIdentifier) {
+        return new FlareInternal(ProfileType.ITIMER, false, false, 1, 0, false, Duration.ofMillis(5), Map.of(), Map.of(),
+                List.of(), List.of(new MemoryProfileSink(1)), classIdentifier, Set.of(), null, null);
+    }
+}
@@ -0,0 +1,72 @@
+package co.technove.flare.internal;
+
+import co.technove.flare.FlareStats;
+import co.technove.flare.collectors.ThreadState;
+import co.technove.flare.internal.util.IntervalManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FlareMetricsTest {
+
+    private static final long SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final ThreadState threadState = new ThreadState(false);
+    private final IntervalManager intervalManager = new IntervalManager(new FlareMetrics());
+
+    @AfterEach
+    void tearDown() {
+        this.intervalManager.cancel();
+    }
+
+    @BeforeEach
+    void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean.isThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled());
+    }
+
+    @Test
+    void keepsTimeOfFinishedThreads() throws Exception {
+        FlareMetrics metrics = new FlareMetrics();
+        Thread thread = metrics.newThread(FlareMetricsTest::spin, "Flare Test");
+        thread.start();
+        thread.join();
+
+        long cpuNanos = metrics.snapshot(this.threadState, this.intervalManager).getThreadCpuTime().toNanos();
+        assertTrue(cpuNanos >= SPIN_NANOS / 2, "finished thread was not counted, got " + cpuNanos);
+        assertEquals(cpuNanos, metrics.snapshot(this.threadState, this.intervalManager).getThreadCpuTime().toNanos());
+    }
+
+    @Test
+    void onlyCountsItsOwnThreads() throws Exception {
+        FlareMetrics metrics = new FlareMetrics();
+        FlareMetrics other = new FlareMetrics();
+        // named like a Flare thread, but started by someone else
+        Thread application = new Thread(FlareMetricsTest::spin, "Flare Lookalike");
+        Thread foreign = other.newThread(FlareMetricsTest::spin, "Flare Other");
+        application.start();
+        foreign.start();
+        application.join();
+        foreign.join();
+
+        FlareStats stats = metrics.snapshot(this.threadState, this.intervalManager);
+        assertEquals(0, stats.getThreadCpuTime().toNanos());
+        assertTrue(other.snapshot(this.threadState, this.intervalManager).getThreadCpuTime().toNanos() > 0);
+    }
+
+    private static void spin() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long start = bean.getCurrentThreadCpuTime();
+        while (bean.getCurrentThreadCpuTime() - start < SPIN_NANOS) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.FlareAuth;
+import co.technove.flare.exceptions.UserReportableException;
+import co.technove.flare.internal.FlareMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for the Flare server. Creating a profile always succeeds, every other request goes to the handler.
+ */
+final class FlareTestServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile Handler handler = (path, body) -> {
+        body.readAllBytes();
+        return 200;
+    };
+
+    FlareTestServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    ProfilingConnection connect() throws UserReportableException {
+        URI uri = URI.create("http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort());
+        return new ProfilingConnection(FlareAuth.fromTokenAndUrl("token", uri), out -> out.write(new byte[]{1, 2, 3}), new FlareMetrics());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(1);
+        int status;
+        String response;
+        try (InputStream body = exchange.getRequestBody()) {
+            if (path.equals("create")) {
+                body.readAllBytes();
+                status = 200;
+                response = "{\"id\":\"profile\",\"key\":\"secret\"}";
+            } else {
+                status = this.handler.handle(path, body);
+                response = "{}";
+            }
+        } catch (Exception e) {
+            status = 500;
+            response = "{}";
+        }
+
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    interface Handler {
+        /**
+         * Handles a request to the given path, returning the status code to respond with.
+         */
+        int handle(String path, InputStream body) throws Exception;
+    }
+}
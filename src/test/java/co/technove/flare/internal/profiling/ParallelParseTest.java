@@ -0,0 +1,126 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.sink.MemoryProfileSink;
+import one.jfr.JfrReader;
+import one.proto.Proto;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelParseTest {
+
+    // two async-profiler recordings of the same workers, itimer and allocation samples, written one after the other
+    private static final String RECORDING = "/recordings/multi-chunk.jfr";
+
+    private Path recording;
+    private FlareInternal flare;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.recording = Files.createTempFile("flare", ".jfr");
+        try (InputStream in = ParallelParseTest.class.getResourceAsStream(RECORDING)) {
+            assertNotNull(in, RECORDING + " is missing");
+            Files.copy(in, this.recording, StandardCopyOption.REPLACE_EXISTING);
+        }
+        this.flare = new FlareInternal(ProfileType.ITIMER, true, false, 4, 0, false, Duration.ofMillis(1), Map.of(), Map.of(),
+                List.of(), List.of(new MemoryProfileSink(1)), null, Set.of(), null, null);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        this.flare.getIntervalManager().cancel();
+        Files.deleteIfExists(this.recording);
+    }
+
+    @Test
+    void parallelMatchesSequential() throws Exception {
+        try (JfrReader reader = new JfrReader(this.recording.toString())) {
+            assertTrue(reader.getChunkCount() > 1, "recording has a single chunk");
+        }
+
+        Map<String, Long> sequential = this.parse(null);
+        assertFalse(sequential.isEmpty());
+        for (int parallelism = 2; parallelism <= 8; parallelism *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                assertEquals(sequential, this.parse(pool), "parsed with " + parallelism + " workers");
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // every path of every tree with its values, by method name, since dictionary indices depend on the order found
+    private Map<String, Long> parse(ForkJoinPool pool) throws Exception {
+        ProfileDictionary dictionary = new ProfileDictionary();
+        AsyncProfilerIntegration.ParsedProfile profile = AsyncProfilerIntegration.readProfile(this.flare, this.recording, dictionary, pool);
+        Proto out = new Proto(1 << 16);
+        AsyncProfilerIntegration.encodeProfile(this.flare, profile, null, 0, dictionary, out);
+        ProfilerFileProto.AirplaneProfileFile window = ProfilerFileProto.AirplaneProfileFile.parseFrom(Arrays.copyOf(out.buffer(), out.size()));
+
+        ProfilerFileProto.MethodDictionarySlice slice = window.getV2().getDictionary();
+        List<String> methods = new ArrayList<>();
+        for (ProfilerFileProto.MethodDictionarySlice.MethodDictionaryEntry entry : slice.getEntriesList()) {
+            methods.add(describe(entry, slice.getPackageEntriesList()));
+        }
+
+        Map<String, Long> paths = new TreeMap<>();
+        paths.put("samples", window.getInfo().getSamples());
+        for (ProfilerFileProto.TimeProfileV2 thread : window.getV2().getTimeProfileList()) {
+            paths.put("time " + thread.getThread(), thread.getTime());
+            addTime(paths, methods, "time " + thread.getThread(), thread.getChildrenList());
+        }
+        for (ProfilerFileProto.MemoryProfileV2 thread : window.getV2().getMemoryProfileList()) {
+            paths.put("memory " + thread.getThread(), thread.getBytes());
+            addMemory(paths, methods, "memory " + thread.getThread(), thread.getChildrenList());
+        }
+        return paths;
+    }
+
+    private static void addTime(Map<String, Long> paths, List<String> methods, String parent, List<ProfilerFileProto.TimeProfileV2.Children> children) {
+        for (ProfilerFileProto.TimeProfileV2.Children child : children) {
+            String path = parent + " > " + methods.get(child.getName());
+            paths.merge(path + " time", child.getTime(), Long::sum);
+            paths.merge(path + " samples", (long) child.getSamples(), Long::sum);
+            addTime(paths, methods, path, child.getChildrenList());
+        }
+    }
+
+    private static void addMemory(Map<String, Long> paths, List<String> methods, String parent, List<ProfilerFileProto.MemoryProfileV2.Children> children) {
+        for (ProfilerFileProto.MemoryProfileV2.Children child : children) {
+            String path = parent + " > " + methods.get(child.getName());
+            paths.merge(path + " bytes", (long) child.getBytes(), Long::sum);
+            addMemory(paths, methods, path, child.getChildrenList());
+        }
+    }
+
+    // overloads share a name, which only ever adds their values together on both sides
+    private static String describe(ProfilerFileProto.MethodDictionarySlice.MethodDictionaryEntry entry, List<String> packages) {
+        if (entry.hasOtherEntry()) {
+            return entry.getOtherEntry().getPath();
+        }
+        ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry java = entry.getJavaEntry();
+        return packages.get(java.getJavaClass().getPackageIndex()) + "." + java.getJavaClass().getName() + "." + java.getMethod();
+    }
+}
@@ -0,0 +1,137 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.proto.ProfilerFileProto;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reconstructs full windows from a stream of delta encoded windows, in the same form as if delta encoding had been
+ * disabled. Windows must be applied in order, starting with a keyframe. Siblings with the same value may be ordered
+ * differently than in a full window. Only used to check the delta format.
+ */
+public class ProfileDeltaDecoder {
+
+    private final Map<String, ProfilerFileProto.TimeProfileV2> timeProfiles = new LinkedHashMap<>();
+    private final Map<String, ProfilerFileProto.MemoryProfileV2> memoryProfiles = new LinkedHashMap<>();
+    private long sequence = -1;
+
+    /**
+     * Applies the window on top of the previous one and returns it as a full window.
+     *
+     * @throws IllegalStateException if the window is a delta that does not follow the previously applied window
+     */
+    public ProfilerFileProto.AirplaneProfileFile apply(ProfilerFileProto.AirplaneProfileFile window) {
+        ProfilerFileProto.AirplaneProfileFile.V2Data v2 = window.getV2();
+        if (!v2.getDelta()) {
+            this.timeProfiles.clear();
+            this.memoryProfiles.clear();
+        } else if (this.sequence < 0 || v2.getSequence() != this.sequence + 1) {
+            throw new IllegalStateException("Delta window " + v2.getSequence() + " does not follow window " + this.sequence);
+        }
+        this.sequence = v2.getSequence();
+
+        for (String thread : v2.getRemovedTimeThreadsList()) {
+            this.timeProfiles.remove(thread);
+        }
+        for (String thread : v2.getRemovedMemoryThreadsList()) {
+            this.memoryProfiles.remove(thread);
+        }
+
+        ProfilerFileProto.AirplaneProfileFile.V2Data.Builder full = v2.toBuilder()
+                .setDelta(false)
+                .clearRemovedTimeThreads()
+                .clearRemovedMemoryThreads()
+                .clearTimeProfile()
+                .clearMemoryProfile();
+        for (ProfilerFileProto.TimeProfileV2 delta : v2.getTimeProfileList()) {
+            ProfilerFileProto.TimeProfileV2 previous = this.timeProfiles.get(delta.getThread());
+            ProfilerFileProto.TimeProfileV2 thread = delta.toBuilder()
+                    .clearRemoved()
+                    .clearChildren()
+                    .addAllChildren(mergeTime(previous == null ? List.of() : previous.getChildrenList(), delta.getChildrenList(), delta.getRemovedList()))
+                    .build();
+            this.timeProfiles.put(thread.getThread(), thread);
+            full.addTimeProfile(thread);
+        }
+        for (ProfilerFileProto.MemoryProfileV2 delta : v2.getMemoryProfileList()) {
+            ProfilerFileProto.MemoryProfileV2 previous = this.memoryProfiles.get(delta.getThread());
+            ProfilerFileProto.MemoryProfileV2 thread = delta.toBuilder()
+                    .clearRemoved()
+                    .clearChildren()
+                    .addAllChildren(mergeMemory(previous == null ? List.of() : previous.getChildrenList(), delta.getChildrenList(), delta.getRemovedList()))
+                    .build();
+            this.memoryProfiles.put(thread.getThread(), thread);
+            full.addMemoryProfile(thread);
+        }
+
+        return window.toBuilder().setV2(full).build();
+    }
+
+    private static List<ProfilerFileProto.TimeProfileV2.Children> mergeTime(List<ProfilerFileProto.TimeProfileV2.Children> previous, List<ProfilerFileProto.TimeProfileV2.Children> changed, List<Integer> removed) {
+        Map<Integer, ProfilerFileProto.TimeProfileV2.Children> children = new LinkedHashMap<>();
+        for (ProfilerFileProto.TimeProfileV2.Children child : previous) {
+            children.put(child.getName(), child);
+        }
+        for (Integer name : removed) {
+            children.remove(name);
+        }
+        for (ProfilerFileProto.TimeProfileV2.Children delta : changed) {
+            ProfilerFileProto.TimeProfileV2.Children old = children.get(delta.getName());
+            ProfilerFileProto.TimeProfileV2.Children.Builder builder;
+            if (delta.getUnchanged()) {
+                if (old == null) {
+                    throw new IllegalStateException("Unchanged node " + delta.getName() + " is missing from the previous window");
+                }
+                builder = old.toBuilder();
+            } else {
+                builder = delta.toBuilder();
+            }
+            children.put(delta.getName(), builder
+                    .setUnchanged(false)
+                    .clearRemoved()
+                    .clearChildren()
+                    .addAllChildren(mergeTime(old == null ? List.of() : old.getChildrenList(), delta.getChildrenList(), delta.getRemovedList()))
+                    .build());
+        }
+
+        List<ProfilerFileProto.TimeProfileV2.Children> result = new ArrayList<>(children.values());
+        result.sort(Comparator.comparingLong(ProfilerFileProto.TimeProfileV2.Children::getTime));
+        return result;
+    }
+
+    private static List<ProfilerFileProto.MemoryProfileV2.Children> mergeMemory(List<ProfilerFileProto.MemoryProfileV2.Children> previous, List<ProfilerFileProto.MemoryProfileV2.Children> changed, List<Integer> removed) {
+        Map<Integer, ProfilerFileProto.MemoryProfileV2.Children> children = new LinkedHashMap<>();
+        for (ProfilerFileProto.MemoryProfileV2.Children child : previous) {
+            children.put(child.getName(), child);
+        }
+        for (Integer name : removed) {
+            children.remove(name);
+        }
+        for (ProfilerFileProto.MemoryProfileV2.Children delta : changed) {
+            ProfilerFileProto.MemoryProfileV2.Children old = children.get(delta.getName());
+            ProfilerFileProto.MemoryProfileV2.Children.Builder builder;
+            if (delta.getUnchanged()) {
+                if (old == null) {
+                    throw new IllegalStateException("Unchanged node " + delta.getName() + " is missing from the previous window");
+                }
+                builder = old.toBuilder();
+            } else {
+                builder = delta.toBuilder();
+            }
+            children.put(delta.getName(), builder
+                    .setUnchanged(false)
+                    .clearRemoved()
+                    .clearChildren()
+                    .addAllChildren(mergeMemory(old == null ? List.of() : old.getChildrenList(), delta.getChildrenList(), delta.getRemovedList()))
+                    .build());
+        }
+
+        List<ProfilerFileProto.MemoryProfileV2.Children> result = new ArrayList<>(children.values());
+        result.sort(Comparator.comparingInt(ProfilerFileProto.MemoryProfileV2.Children::getBytes));
+        return result;
+    }
+}
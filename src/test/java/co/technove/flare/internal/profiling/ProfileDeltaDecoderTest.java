@@ -0,0 +1,205 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.profiling.dictionary.OtherMethod;
+import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.internal.profiling.dictionary.TypeValue;
+import co.technove.flare.proto.ProfilerFileProto;
+import com.google.protobuf.InvalidProtocolBufferException;
+import one.proto.Proto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProfileDeltaDecoderTest {
+
+    private static final int METHODS = 12;
+    private static final int THREADS = 5;
+    private static final int KEYFRAME_INTERVAL = 4;
+
+    private final ProfileDictionary dictionary = new ProfileDictionary();
+
+    @BeforeEach
+    void setUp() {
+        // other methods never look up plugins, so the trees can be encoded without a Flare
+        for (int i = 0; i < METHODS; i++) {
+            this.dictionary.getOrAddMethod(new OtherMethod(TypeValue.JFRMethodType.NATIVE, "method" + i));
+        }
+    }
+
+    @Test
+    void deltasDecodeToFullWindows() throws Exception {
+        Random random = new Random(16);
+        ProfileDeltaDecoder decoder = new ProfileDeltaDecoder();
+        Map<String, List<Stack>> timeStacks = new LinkedHashMap<>();
+        Map<String, List<Stack>> memoryStacks = new LinkedHashMap<>();
+        Map<String, CallTree> previousTime = null;
+        Map<String, CallTree> previousMemory = null;
+        long fullBytes = 0;
+        long deltaBytes = 0;
+
+        for (int sequence = 0; sequence < 24; sequence++) {
+            Map<String, CallTree> time = evolve(random, timeStacks);
+            Map<String, CallTree> memory = evolve(random, memoryStacks);
+            boolean delta = sequence % KEYFRAME_INTERVAL != 0;
+
+            ProfilerFileProto.AirplaneProfileFile full = this.window(sequence, time, memory, null, null);
+            ProfilerFileProto.AirplaneProfileFile window = delta ? this.window(sequence, time, memory, previousTime, previousMemory) : full;
+            assertEquals(normalize(full), normalize(decoder.apply(window)), "window " + sequence);
+
+            if (delta) {
+                fullBytes += full.getSerializedSize();
+                deltaBytes += window.getSerializedSize();
+            }
+            previousTime = time;
+            previousMemory = memory;
+        }
+        assertTrue(deltaBytes < fullBytes, "delta windows took " + deltaBytes + " bytes, full ones " + fullBytes);
+    }
+
+    @Test
+    void rejectsDeltaThatDoesNotFollow() throws Exception {
+        Random random = new Random(16);
+        Map<String, List<Stack>> stacks = new LinkedHashMap<>();
+        Map<String, CallTree> first = evolve(random, stacks);
+        Map<String, CallTree> second = evolve(random, stacks);
+        Map<String, CallTree> third = evolve(random, stacks);
+
+        ProfileDeltaDecoder decoder = new ProfileDeltaDecoder();
+        decoder.apply(this.window(0, first, Map.of(), null, null));
+        // the window with sequence 1 was missed
+        ProfilerFileProto.AirplaneProfileFile skipped = this.window(2, third, Map.of(), second, Map.of());
+        assertThrows(IllegalStateException.class, () -> decoder.apply(skipped));
+    }
+
+    // builds the window the same way the profile encoder does, delta encoded if the previous trees are given
+    private ProfilerFileProto.AirplaneProfileFile window(long sequence, Map<String, CallTree> time, Map<String, CallTree> memory, Map<String, CallTree> previousTime, Map<String, CallTree> previousMemory) throws InvalidProtocolBufferException {
+        boolean delta = previousTime != null;
+        ProfilerFileProto.AirplaneProfileFile.V2Data.Builder v2 = ProfilerFileProto.AirplaneProfileFile.V2Data.newBuilder()
+                .setSequence(sequence)
+                .setDelta(delta);
+        for (Map.Entry<String, CallTree> entry : time.entrySet()) {
+            CallTree.Encoded encoded = entry.getValue().encodeTime(delta ? previousTime.get(entry.getKey()) : null, null, this.dictionary);
+            v2.addTimeProfile(ProfilerFileProto.TimeProfileV2.parseFrom(thread(entry.getKey(), encoded)));
+        }
+        for (Map.Entry<String, CallTree> entry : memory.entrySet()) {
+            CallTree.Encoded encoded = entry.getValue().encodeMemory(delta ? previousMemory.get(entry.getKey()) : null, null, this.dictionary);
+            v2.addMemoryProfile(ProfilerFileProto.MemoryProfileV2.parseFrom(thread(entry.getKey(), encoded)));
+        }
+        if (delta) {
+            for (String thread : previousTime.keySet()) {
+                if (!time.containsKey(thread)) {
+                    v2.addRemovedTimeThreads(thread);
+                }
+            }
+            for (String thread : previousMemory.keySet()) {
+                if (!memory.containsKey(thread)) {
+                    v2.addRemovedMemoryThreads(thread);
+                }
+            }
+        }
+        return ProfilerFileProto.AirplaneProfileFile.newBuilder().setV2(v2).build();
+    }
+
+    private static byte[] thread(String name, CallTree.Encoded encoded) {
+        Proto proto = new Proto(encoded.getSize() + 64);
+        proto.field(1, name);
+        encoded.writeTo(proto);
+        return Arrays.copyOf(proto.buffer(), proto.size());
+    }
+
+    // keeps most stacks from the previous window, so there is something to leave out of the deltas
+    private static Map<String, CallTree> evolve(Random random, Map<String, List<Stack>> threads) {
+        for (int i = 0; i < THREADS; i++) {
+            String thread = "thread-" + i;
+            if (random.nextInt(6) == 0) {
+                threads.remove(thread);
+                continue;
+            }
+            List<Stack> stacks = threads.computeIfAbsent(thread, name -> new ArrayList<>());
+            stacks.removeIf(stack -> random.nextInt(8) == 0);
+            for (Stack stack : stacks) {
+                if (random.nextInt(4) == 0) {
+                    stack.weight += random.nextInt(100) + 1;
+                    stack.samples++;
+                }
+            }
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                int[] methods = new int[random.nextInt(6) + 1];
+                for (int k = 0; k < methods.length; k++) {
+                    methods[k] = random.nextInt(METHODS);
+                }
+                stacks.add(new Stack(methods, random.nextInt(1000) + 1));
+            }
+        }
+
+        Map<String, CallTree> trees = new LinkedHashMap<>();
+        threads.forEach((thread, stacks) -> {
+            CallTree tree = new CallTree();
+            for (Stack stack : stacks) {
+                int node = CallTree.ROOT;
+                for (int method : stack.methods) {
+                    node = tree.child(node, method);
+                }
+                tree.add(node, stack.samples, stack.weight);
+            }
+            trees.put(thread, tree);
+        });
+        return trees;
+    }
+
+    // siblings with the same value may come in any order, so sort them by name as well
+    private static ProfilerFileProto.AirplaneProfileFile normalize(ProfilerFileProto.AirplaneProfileFile window) {
+        ProfilerFileProto.AirplaneProfileFile.V2Data.Builder v2 = window.getV2().toBuilder()
+                .clearTimeProfile()
+                .clearMemoryProfile();
+        for (ProfilerFileProto.TimeProfileV2 thread : window.getV2().getTimeProfileList()) {
+            v2.addTimeProfile(thread.toBuilder().clearChildren().addAllChildren(sortTime(thread.getChildrenList())));
+        }
+        for (ProfilerFileProto.MemoryProfileV2 thread : window.getV2().getMemoryProfileList()) {
+            v2.addMemoryProfile(thread.toBuilder().clearChildren().addAllChildren(sortMemory(thread.getChildrenList())));
+        }
+        return window.toBuilder().setV2(v2).build();
+    }
+
+    private static List<ProfilerFileProto.TimeProfileV2.Children> sortTime(List<ProfilerFileProto.TimeProfileV2.Children> children) {
+        List<ProfilerFileProto.TimeProfileV2.Children> sorted = new ArrayList<>(children.size());
+        for (ProfilerFileProto.TimeProfileV2.Children child : children) {
+            sorted.add(child.toBuilder().clearChildren().addAllChildren(sortTime(child.getChildrenList())).build());
+        }
+        sorted.sort(Comparator.comparingLong(ProfilerFileProto.TimeProfileV2.Children::getTime)
+                .thenComparingInt(ProfilerFileProto.TimeProfileV2.Children::getName));
+        return sorted;
+    }
+
+    private static List<ProfilerFileProto.MemoryProfileV2.Children> sortMemory(List<ProfilerFileProto.MemoryProfileV2.Children> children) {
+        List<ProfilerFileProto.MemoryProfileV2.Children> sorted = new ArrayList<>(children.size());
+        for (ProfilerFileProto.MemoryProfileV2.Children child : children) {
+            sorted.add(child.toBuilder().clearChildren().addAllChildren(sortMemory(child.getChildrenList())).build());
+        }
+        sorted.sort(Comparator.comparingInt(ProfilerFileProto.MemoryProfileV2.Children::getBytes)
+                .thenComparingInt(ProfilerFileProto.MemoryProfileV2.Children::getName));
+        return sorted;
+    }
+
+    private static final class Stack {
+        private final int[] methods;
+        private long weight;
+        private long samples = 1;
+
+        private Stack(int[] methods, long weight) {
+            this.methods = methods;
+            this.weight = weight;
+        }
+    }
+}
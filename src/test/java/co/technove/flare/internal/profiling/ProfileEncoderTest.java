@@ -0,0 +1,359 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.FlareInternal;
+import co.technove.flare.internal.profiling.dictionary.JavaMethod;
+import co.technove.flare.internal.profiling.dictionary.OtherMethod;
+import co.technove.flare.internal.profiling.dictionary.ProfileDictionary;
+import co.technove.flare.internal.profiling.dictionary.TypeValue;
+import co.technove.flare.proto.ProfilerFileProto;
+import co.technove.flare.sink.MemoryProfileSink;
+import one.proto.Proto;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks that the hand-written encoder produces exactly the bytes the generated message classes would.
+ */
+class ProfileEncoderTest {
+
+    private static final int JAVA_METHODS = 8;
+    private static final int OTHER_METHODS = 8;
+    private static final int THREADS = 4;
+
+    private final ProfileDictionary dictionary = new ProfileDictionary();
+    private final List<Optional<String>> plugins = new ArrayList<>();
+    private FlareInternal flare;
+
+    @BeforeEach
+    void setUp() {
+        this.flare = new FlareInternal(ProfileType.ITIMER, true, false, 1, 0, false, Duration.ofMillis(5), Map.of(), Map.of(),
+                List.of(), List.of(new MemoryProfileSink(1)), ProfileEncoderTest::identify, Set.of(), null, null);
+        for (int i = 0; i < JAVA_METHODS; i++) {
+            String className = (i % 2 == 0 ? "com/example/plugin/Class" : "com/example/server/Class") + i;
+            TypeValue method = new JavaMethod(TypeValue.JFRMethodType.JAVA, bytes(className), bytes("method" + i), bytes("(I)V"));
+            this.plugins.add(identify(((JavaMethod) method).getRawClass()));
+            this.dictionary.getOrAddMethod(method);
+        }
+        for (int i = 0; i < OTHER_METHODS; i++) {
+            this.dictionary.getOrAddMethod(new OtherMethod(i % 2 == 0 ? TypeValue.JFRMethodType.NATIVE : TypeValue.JFRMethodType.KERNEL, "native" + i));
+            this.plugins.add(Optional.empty());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.flare.getIntervalManager().cancel();
+    }
+
+    @Test
+    void encodesFullWindowsLikeTheGeneratedClasses() {
+        Random random = new Random(7);
+        for (int window = 0; window < 16; window++) {
+            Window time = Window.random(random);
+            Window memory = Window.random(random);
+            this.assertEncodesLikeGenerated(window, time, memory);
+        }
+    }
+
+    @Test
+    void encodesEmptyWindowsLikeTheGeneratedClasses() {
+        this.assertEncodesLikeGenerated(0, new Window(), new Window());
+        this.assertEncodesLikeGenerated(1, new Window(), new Window(), new Window(), new Window());
+    }
+
+    @Test
+    void encodesDeltaWindowsLikeTheGeneratedClasses() {
+        Random random = new Random(11);
+        Map<String, List<Stack>> timeStacks = new LinkedHashMap<>();
+        Map<String, List<Stack>> memoryStacks = new LinkedHashMap<>();
+        Window previousTime = Window.of(evolve(random, timeStacks));
+        Window previousMemory = Window.of(evolve(random, memoryStacks));
+        for (int window = 1; window < 24; window++) {
+            Window time = Window.of(evolve(random, timeStacks));
+            Window memory = Window.of(evolve(random, memoryStacks));
+            this.assertEncodesLikeGenerated(window, time, memory, previousTime, previousMemory);
+            previousTime = time;
+            previousMemory = memory;
+        }
+    }
+
+    private void assertEncodesLikeGenerated(long sequence, Window time, Window memory) {
+        this.assertEncodesLikeGenerated(sequence, time, memory, null, null);
+    }
+
+    private void assertEncodesLikeGenerated(long sequence, Window time, Window memory, @Nullable Window previousTime, @Nullable Window previousMemory) {
+        boolean delta = previousTime != null;
+        AsyncProfilerIntegration.ParsedProfile profile = new AsyncProfilerIntegration.ParsedProfile(time.toProfileData(), memory.toProfileData(), 1_234_567_890L);
+        AsyncProfilerIntegration.ParsedProfile previous = delta ? new AsyncProfilerIntegration.ParsedProfile(previousTime.toProfileData(), previousMemory.toProfileData(), 1_234_567_890L) : null;
+        Proto out = new Proto(16);
+        ProfilerFileProto.MethodDictionarySlice slice = AsyncProfilerIntegration.encodeProfile(this.flare, profile, previous, sequence, this.dictionary, out);
+
+        ProfilerFileProto.AirplaneProfileFile.V2Data.Builder v2 = ProfilerFileProto.AirplaneProfileFile.V2Data.newBuilder()
+                .setDictionary(slice)
+                .setSequence(sequence)
+                .setDelta(delta);
+        time.threads.forEach((thread, root) -> {
+            Node previousRoot = delta ? previousTime.threads.get(thread) : null;
+            ProfilerFileProto.TimeProfileV2.Builder builder = ProfilerFileProto.TimeProfileV2.newBuilder()
+                    .setThread(thread)
+                    .setTime(root.total())
+                    .setSamples(time.samples)
+                    .addAllRemoved(root.removedSince(previousRoot));
+            for (Node child : root.sortedChildren()) {
+                this.timeNode(child, previousRoot == null ? null : previousRoot.find(child.method)).ifPresent(builder::addChildren);
+            }
+            v2.addTimeProfile(builder);
+        });
+        memory.threads.forEach((thread, root) -> {
+            Node previousRoot = delta ? previousMemory.threads.get(thread) : null;
+            ProfilerFileProto.MemoryProfileV2.Builder builder = ProfilerFileProto.MemoryProfileV2.newBuilder()
+                    .setThread(thread)
+                    .setBytes(root.total())
+                    .addAllRemoved(root.removedSince(previousRoot));
+            for (Node child : root.sortedChildren()) {
+                this.memoryNode(child, previousRoot == null ? null : previousRoot.find(child.method)).ifPresent(builder::addChildren);
+            }
+            v2.addMemoryProfile(builder);
+        });
+        if (delta) {
+            for (String thread : previousTime.threads.keySet()) {
+                if (!time.threads.containsKey(thread)) {
+                    v2.addRemovedTimeThreads(thread);
+                }
+            }
+            for (String thread : previousMemory.threads.keySet()) {
+                if (!memory.threads.containsKey(thread)) {
+                    v2.addRemovedMemoryThreads(thread);
+                }
+            }
+        }
+        byte[] expected = ProfilerFileProto.AirplaneProfileFile.newBuilder()
+                .setInfo(ProfilerFileProto.AirplaneProfileFile.ProfileInfo.newBuilder()
+                        .setSamples(Math.max(time.samples, memory.samples))
+                        .setTimeMs(1234))
+                .setData(ProfilerFileProto.AirplaneProfileFile.ProfileData.newBuilder()
+                        .setMemoryProfile(ProfilerFileProto.MemoryProfile.getDefaultInstance()))
+                .setV2(v2)
+                .build()
+                .toByteArray();
+
+        assertArrayEquals(expected, Arrays.copyOf(out.buffer(), out.size()), "window " + sequence);
+    }
+
+    // a node matched in the previous window is left out if neither it nor anything below it changed
+    private Optional<ProfilerFileProto.TimeProfileV2.Children> timeNode(Node node, @Nullable Node previous) {
+        ProfilerFileProto.TimeProfileV2.Children.Builder builder = ProfilerFileProto.TimeProfileV2.Children.newBuilder()
+                .setName(node.method);
+        for (Node child : node.sortedChildren()) {
+            this.timeNode(child, previous == null ? null : previous.find(child.method)).ifPresent(builder::addChildren);
+        }
+        builder.addAllRemoved(node.removedSince(previous));
+        boolean unchanged = previous != null && node.total() == previous.total() && node.samples == previous.samples;
+        if (unchanged) {
+            if (builder.getChildrenCount() == 0 && builder.getRemovedCount() == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(builder.setUnchanged(true).build());
+        }
+        builder.setTime(node.total()).setSamples((int) node.samples);
+        this.plugins.get(node.method).ifPresent(builder::setPlugin);
+        return Optional.of(builder.build());
+    }
+
+    private Optional<ProfilerFileProto.MemoryProfileV2.Children> memoryNode(Node node, @Nullable Node previous) {
+        ProfilerFileProto.MemoryProfileV2.Children.Builder builder = ProfilerFileProto.MemoryProfileV2.Children.newBuilder()
+                .setName(node.method);
+        for (Node child : node.sortedChildren()) {
+            this.memoryNode(child, previous == null ? null : previous.find(child.method)).ifPresent(builder::addChildren);
+        }
+        builder.addAllRemoved(node.removedSince(previous));
+        boolean unchanged = previous != null && (int) node.total() == (int) previous.total();
+        if (unchanged) {
+            if (builder.getChildrenCount() == 0 && builder.getRemovedCount() == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(builder.setUnchanged(true).build());
+        }
+        builder.setBytes((int) node.total());
+        this.plugins.get(node.method).ifPresent(builder::setPlugin);
+        return Optional.of(builder.build());
+    }
+
+    // keeps most stacks from the previous window, so whole subtrees go unchanged while others grow or disappear
+    private static Map<String, List<Stack>> evolve(Random random, Map<String, List<Stack>> threads) {
+        for (int thread = 0; thread < THREADS; thread++) {
+            String name = "thread-" + thread;
+            if (random.nextInt(6) == 0) {
+                threads.remove(name);
+                continue;
+            }
+            List<Stack> stacks = threads.computeIfAbsent(name, key -> new ArrayList<>());
+            stacks.removeIf(stack -> random.nextInt(8) == 0);
+            for (Stack stack : stacks) {
+                if (random.nextInt(4) == 0) {
+                    stack.weight += random.nextInt(3) * 50;
+                    stack.samples++;
+                }
+            }
+            for (int i = random.nextInt(4); i >= 0; i--) {
+                stacks.add(Stack.random(random));
+            }
+        }
+        return threads;
+    }
+
+    private static Optional<String> identify(String className) {
+        return className.startsWith("com.example.plugin.") ? Optional.of("Example") : Optional.empty();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The trees of one profile type, kept as plain nodes next to the {@link CallTree} built from the same stacks.
+     */
+    private static final class Window {
+        private final Map<String, Node> threads = new LinkedHashMap<>();
+        private final Map<String, CallTree> trees = new LinkedHashMap<>();
+        private int samples;
+
+        private static Window random(Random random) {
+            Window window = new Window();
+            for (int thread = 0; thread < THREADS; thread++) {
+                if (random.nextInt(5) == 0) {
+                    continue;
+                }
+                for (int stack = random.nextInt(12); stack >= 0; stack--) {
+                    window.add("thread-" + thread, Stack.random(random));
+                }
+            }
+            return window;
+        }
+
+        private static Window of(Map<String, List<Stack>> threads) {
+            Window window = new Window();
+            threads.forEach((thread, stacks) -> {
+                for (Stack stack : stacks) {
+                    window.add(thread, stack);
+                }
+            });
+            return window;
+        }
+
+        private void add(String thread, Stack stack) {
+            Node node = this.threads.computeIfAbsent(thread, name -> new Node(-1));
+            CallTree tree = this.trees.computeIfAbsent(thread, name -> new CallTree());
+            int treeNode = CallTree.ROOT;
+            for (int method : stack.methods) {
+                node = node.child(method);
+                treeNode = tree.child(treeNode, method);
+            }
+            node.samples += stack.samples;
+            node.weight += stack.weight;
+            tree.add(treeNode, stack.samples, stack.weight);
+            this.samples += (int) stack.samples;
+        }
+
+        private AsyncProfilerIntegration.FinalProfileData toProfileData() {
+            return new AsyncProfilerIntegration.FinalProfileData(this.trees, this.samples);
+        }
+    }
+
+    private static final class Node {
+        private final int method;
+        private final List<Node> children = new ArrayList<>();
+        private long samples;
+        private long weight;
+
+        private Node(int method) {
+            this.method = method;
+        }
+
+        private Node child(int method) {
+            Node child = this.find(method);
+            if (child == null) {
+                child = new Node(method);
+                this.children.add(child);
+            }
+            return child;
+        }
+
+        private @Nullable Node find(int method) {
+            for (Node child : this.children) {
+                if (child.method == method) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        // children of the previous node that are gone, newest first
+        private List<Integer> removedSince(@Nullable Node previous) {
+            List<Integer> removed = new ArrayList<>();
+            if (previous != null) {
+                for (int i = previous.children.size() - 1; i >= 0; i--) {
+                    int method = previous.children.get(i).method;
+                    if (this.find(method) == null) {
+                        removed.add(method);
+                    }
+                }
+            }
+            return removed;
+        }
+
+        private long total() {
+            long total = this.weight;
+            for (Node child : this.children) {
+                total += child.total();
+            }
+            return total;
+        }
+
+        // ascending by total, ties newest first
+        private List<Node> sortedChildren() {
+            List<Node> sorted = new ArrayList<>(this.children);
+            Collections.reverse(sorted);
+            sorted.sort(Comparator.comparingLong(Node::total));
+            return sorted;
+        }
+    }
+
+    private static final class Stack {
+        private final int[] methods;
+        private long samples;
+        private long weight;
+
+        private Stack(int[] methods, long samples, long weight) {
+            this.methods = methods;
+            this.samples = samples;
+            this.weight = weight;
+        }
+
+        private static Stack random(Random random) {
+            int[] methods = new int[random.nextInt(6) + 1];
+            for (int i = 0; i < methods.length; i++) {
+                // few methods, so stacks share prefixes and siblings often tie
+                methods[i] = random.nextInt(JAVA_METHODS + OTHER_METHODS);
+            }
+            return new Stack(methods, random.nextInt(3) + 1, random.nextInt(4) * 50);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package co.technove.flare.internal.profiling;
+
+import co.technove.flare.internal.FlareMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProfileUploaderTest {
+
+    // how many uploads are kept in memory, including the one being sent
+    private static final int IN_MEMORY = 8;
+
+    @TempDir
+    Path spoolDirectory;
+
+    private FlareTestServer server;
+    private ProfileUploader uploader;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.server = new FlareTestServer();
+        this.uploader = new ProfileUploader(this.server.connect(), this.spoolDirectory, 64L * 1024 * 1024, new FlareMetrics());
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.uploader.close();
+        this.server.close();
+    }
+
+    @Test
+    void failedSpoolReplayIsRetried() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean failedReplay = new AtomicBoolean();
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        this.server.setHandler((path, body) -> {
+            String data = new String(new GZIPInputStream(body).readAllBytes(), StandardCharsets.UTF_8);
+            if (path.equals("memory/0")) {
+                // hold the first upload so the rest fill memory and overflow into the spool
+                release.await();
+            }
+            if (path.startsWith("spool/") && failedReplay.compareAndSet(false, true)) {
+                received.add(path + " " + data + " 503");
+                return 503;
+            }
+            received.add(path + " " + data + " 200");
+            if (path.equals("spool/1")) {
+                done.countDown();
+            }
+            return 200;
+        });
+
+        for (int i = 0; i < IN_MEMORY; i++) {
+            this.submit("memory/" + i);
+        }
+        this.submit("spool/0");
+        this.submit("spool/1");
+        release.countDown();
+
+        assertTrue(done.await(30, TimeUnit.SECONDS), "spooled uploads were not delivered, received " + received);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < IN_MEMORY; i++) {
+            expected.add("memory/" + i + " memory/" + i + " 200");
+        }
+        // the failed record stays at the head of the spool and is sent again, unchanged, before the next one
+        expected.add("spool/0 spool/0 503");
+        expected.add("spool/0 spool/0 200");
+        expected.add("spool/1 spool/1 200");
+        assertEquals(expected, received);
+    }
+
+    private void submit(String path) {
+        this.uploader.submit(path, out -> out.write(path.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,138 @@
+package co.technove.flare.internal.profiling;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProfilingConnectionTest {
+
+    private static final long BODY_SIZE = 64L * 1024 * 1024;
+    private static final long STALL_AFTER = 1024 * 1024;
+    // the pipe, gzip and http client buffers, plus whatever the loopback socket holds
+    private static final long MAX_IN_FLIGHT = 16L * 1024 * 1024;
+
+    private FlareTestServer server;
+    private ProfilingConnection connection;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.server = new FlareTestServer();
+        this.connection = this.server.connect();
+    }
+
+    @AfterEach
+    void tearDown() {
+        this.server.close();
+    }
+
+    @Test
+    void streamsBodyWithoutBufferingIt() throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        AtomicLong received = new AtomicLong();
+        this.server.setHandler((path, body) -> {
+            try (InputStream in = new GZIPInputStream(body)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    if (received.addAndGet(read) >= STALL_AFTER && stalled.getCount() > 0) {
+                        stalled.countDown();
+                        resume.await();
+                    }
+                }
+            }
+            return 200;
+        });
+
+        long baseline = usedHeapAfterGc();
+        AtomicLong written = new AtomicLong();
+        CompletableFuture<?> request = this.connection.send("upload", out -> writeNoise(out, BODY_SIZE, written));
+        assertTrue(stalled.await(30, TimeUnit.SECONDS), "server never received the start of the body");
+
+        // with the server no longer reading, the writer blocks once every buffer in between is full
+        long last;
+        do {
+            last = written.get();
+            Thread.sleep(500);
+        } while (written.get() != last);
+
+        assertTrue(written.get() < BODY_SIZE, "the whole body was written while the server was not reading");
+        assertTrue(written.get() - received.get() < MAX_IN_FLIGHT, "writer got " + (written.get() - received.get()) + " bytes ahead of the server");
+        long heapGrowth = usedHeapAfterGc() - baseline;
+        assertTrue(heapGrowth < MAX_IN_FLIGHT, "heap grew by " + heapGrowth + " bytes during the upload");
+
+        resume.countDown();
+        request.get(60, TimeUnit.SECONDS);
+        assertEquals(BODY_SIZE, received.get());
+    }
+
+    @Test
+    void failedRequestReleasesWriter() throws Exception {
+        // responds without reading the body, so the writer is left with a full pipe
+        this.server.setHandler((path, body) -> 503);
+
+        CompletableFuture<?> request = this.connection.send("upload", out -> writeNoise(out, BODY_SIZE, new AtomicLong()));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> request.get(60, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException, "expected a retryable failure, got " + e.getCause());
+
+        assertWriterAvailable();
+    }
+
+    @Test
+    void invalidRequestReleasesWriter() throws Exception {
+        CompletableFuture<?> request = this.connection.send("not a path", out -> writeNoise(out, BODY_SIZE, new AtomicLong()));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> request.get(60, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalArgumentException, "expected the request to be rejected, got " + e.getCause());
+
+        assertWriterAvailable();
+    }
+
+    // there is a single writer thread, so a stuck one would keep this from ever completing
+    private void assertWriterAvailable() throws Exception {
+        this.server.setHandler((path, body) -> {
+            body.readAllBytes();
+            return 200;
+        });
+        this.connection.send("upload", out -> out.write(1)).get(30, TimeUnit.SECONDS);
+    }
+
+    // incompressible, so the compressed body is as large as the data written
+    private static void writeNoise(OutputStream out, long size, AtomicLong written) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long state = 0x9E3779B97F4A7C15L;
+        while (written.get() < size) {
+            for (int i = 0; i < buffer.length; i += 8) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                for (int j = 0; j < 8; j++) {
+                    buffer[i + j] = (byte) (state >>> (j * 8));
+                }
+            }
+            int length = (int) Math.min(buffer.length, size - written.get());
+            out.write(buffer, 0, length);
+            written.addAndGet(length);
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
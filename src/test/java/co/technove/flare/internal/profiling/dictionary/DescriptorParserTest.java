@@ -0,0 +1,93 @@
+package co.technove.flare.internal.profiling.dictionary;
+
+import co.technove.flare.proto.ProfilerFileProto.MethodDictionarySlice.JavaDictionaryEntry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DescriptorParserTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "()V                                            | () void",
+            "(IJZBCSFD)V                                    | (int, long, boolean, byte, char, short, float, double) void",
+            "([I[[Ljava/lang/String;)[J                     | (int[], java.lang.String[][]) long[]",
+            "([[[D)[[Ljava/lang/Object;                     | (double[][][]) java.lang.Object[][]",
+            // generics are erased in descriptors, so nested type arguments never show up
+            "(Ljava/util/Map;Ljava/util/List;)Ljava/util/Map; | (java.util.Map, java.util.List) java.util.Map",
+            "(Ljava/util/Map$Entry;)Lcom/example/Outer$Inner$1; | (java.util.Map$Entry) com.example.Outer$Inner$1",
+            "([Lcom/example/Outer$Inner;I)V                 | (com.example.Outer$Inner[], int) void",
+            "(LNoPackage;)LNoPackage;                       | (NoPackage) NoPackage",
+    })
+    void parsesDescriptors(String descriptor, String expected) {
+        ProfileDictionary dictionary = new ProfileDictionary();
+        DescriptorParser.Signature signature = DescriptorParser.parseSignature(descriptor, dictionary);
+        List<String> packages = dictionary.toProto().getPackageEntriesList();
+
+        StringJoiner params = new StringJoiner(", ", "(", ")");
+        for (JavaDictionaryEntry.JavaTypeValue param : signature.getParams()) {
+            params.add(render(param, packages));
+        }
+        assertEquals(expected, params + " " + render(signature.getReturnType(), packages));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "V",
+            "I)V",
+            "(I",
+            "(I)",
+            "(Ljava/lang/String)V",
+            "([)V",
+            "([",
+            "(Q)V",
+            "()",
+            // a generic signature is not a descriptor
+            "(Ljava/util/List<Ljava/lang/String;>;)V",
+    })
+    void rejectsMalformedDescriptors(String descriptor) {
+        assertThrows(IllegalArgumentException.class, () -> DescriptorParser.parseSignature(descriptor, new ProfileDictionary()));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "java.lang.String                                | java.lang | String",
+            "com.example.Outer$Inner$1                       | com.example | Outer$Inner$1",
+            "NoPackage                                       | ''          | NoPackage",
+            // the suffix of a hidden class is dotted like a package once slashes are replaced
+            "com.example.Main$$Lambda$14.0x0000000800c03000  | com.example | Main$$Lambda$14.0x0000000800c03000",
+    })
+    void splitsClassNames(String classString, String packageName, String name) {
+        ProfileDictionary dictionary = new ProfileDictionary();
+        JavaDictionaryEntry.JavaClass javaClass = DescriptorParser.parseClass(classString, dictionary);
+        assertEquals(packageName, dictionary.toProto().getPackageEntries(javaClass.getPackageIndex()));
+        assertEquals(name, javaClass.getName());
+    }
+
+    @Test
+    void parsesEachDescriptorOnce() {
+        ProfileDictionary dictionary = new ProfileDictionary();
+        DescriptorParser.Signature signature = dictionary.getOrParseSignature("(Ljava/lang/String;)V");
+        assertSame(signature, dictionary.getOrParseSignature("(Ljava/lang/String;)V"));
+    }
+
+    private static String render(JavaDictionaryEntry.JavaTypeValue type, List<String> packages) {
+        String name;
+        if (type.hasJavaClassType()) {
+            String packageName = packages.get(type.getJavaClassType().getPackageIndex());
+            name = packageName.isEmpty() ? type.getJavaClassType().getName() : packageName + "." + type.getJavaClassType().getName();
+        } else {
+            name = type.getPrimitive();
+        }
+        return name + "[]".repeat(type.getArray());
+    }
+}
@@ -0,0 +1,77 @@
+package co.technove.flare.internal.profiling.dictionary;
+
+import co.technove.flare.proto.ProfilerFileProto.MethodDictionarySlice;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JavaMethodTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "java/lang/String                               | java.lang.String                               | java.lang.String",
+            "com/example/Outer$Inner                        | com.example.Outer$Inner                        | com.example.Outer",
+            "com/example/Outer$Inner$1                      | com.example.Outer$Inner$1                      | com.example.Outer",
+            "com/example/Main$$Lambda$14.0x0000000800c03000 | com.example.Main$$Lambda$14.0x0000000800c03000 | com.example.Main",
+            "NoPackage                                      | NoPackage                                      | NoPackage",
+    })
+    void decodesClassNames(String className, String classString, String rawClass) {
+        JavaMethod method = method(className, "run", "()V");
+        assertEquals(classString, method.getClassString());
+        assertEquals(rawClass, method.getRawClass());
+        // decoded once, then served from the cached string
+        assertSame(method.getClassString(), method.getClassString());
+        assertSame(method.getRawClass(), method.getRawClass());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+            "com/example/Main | main      | ([Ljava/lang/String;)V   | main      | 1 | void",
+            "com/example/Main | <init>    | (IJ)V                    | <init>    | 2 | void",
+            "com/example/Main | lambda$0  | ()[[I                    | lambda$0  | 0 | int",
+            "com/example/Main | größe     | (Ljava/util/Map$Entry;)J | größe     | 1 | long",
+    })
+    void buildsDictionaryEntries(String className, String methodName, String descriptor, String method, int params, String returnType) {
+        JavaMethod javaMethod = method(className, methodName, descriptor);
+        assertEquals(method, javaMethod.getMethodStr());
+        assertEquals(descriptor, javaMethod.getSignatureStr());
+        assertEquals("J" + className.replace('/', '.') + "." + method + descriptor, javaMethod.toString());
+
+        ProfileDictionary dictionary = new ProfileDictionary();
+        MethodDictionarySlice.JavaDictionaryEntry entry = javaMethod.getEntry(dictionary).getJavaEntry();
+        assertEquals(method, entry.getMethod());
+        assertEquals("Main", entry.getJavaClass().getName());
+        assertEquals("com.example", dictionary.toProto().getPackageEntries(entry.getJavaClass().getPackageIndex()));
+        assertEquals(params, entry.getParamsCount());
+        assertEquals(returnType, entry.getReturnType().getPrimitive());
+    }
+
+    @Test
+    void reportsMalformedSignatures() {
+        JavaMethod method = method("com/example/Main", "broken", "(Ljava/lang/String");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> method.getEntry(new ProfileDictionary()));
+        assertTrue(e.getMessage().contains("com.example.Main.broken"), e.getMessage());
+        assertTrue(e.getCause() instanceof IllegalArgumentException, String.valueOf(e.getCause()));
+    }
+
+    @Test
+    void comparesRawBytes() {
+        assertEquals(method("com/example/Main", "run", "()V"), method("com/example/Main", "run", "()V"));
+        assertEquals(method("com/example/Main", "run", "()V").hashCode(), method("com/example/Main", "run", "()V").hashCode());
+        assertNotEquals(method("com/example/Main", "run", "()V"), method("com/example/Main", "run", "(I)V"));
+        assertNotEquals(method("com/example/Main", "run", "()V"), method("com/example/Main$1", "run", "()V"));
+    }
+
+    private static JavaMethod method(String className, String methodName, String descriptor) {
+        return new JavaMethod(TypeValue.JFRMethodType.JAVA, className.getBytes(StandardCharsets.UTF_8),
+                methodName.getBytes(StandardCharsets.UTF_8), descriptor.getBytes(StandardCharsets.UTF_8));
+    }
+}
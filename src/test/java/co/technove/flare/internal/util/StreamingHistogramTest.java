@@ -0,0 +1,146 @@
+package co.technove.flare.internal.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamingHistogramTest {
+
+    // a bucket is an eighth of a power of two, so its midpoint is at most half of that away from anything in it
+    private static final double ERROR = 1.0 / 16;
+
+    @ParameterizedTest
+    @CsvSource({
+            // the lower edge of a power of two starts its first bucket, anything below is in the last bucket of the one before
+            "1.0,                  1.0625",
+            "0.9999999999999999,   0.96875",
+            // sub-bucket edges
+            "1.125,                1.1875",
+            "1.1249999999999998,   1.0625",
+            "1.875,                1.9375",
+            "48,                   50",
+            "47.99999999999999,    46",
+            // magnitudes outside of the tracked range share the outermost buckets
+            "1e-12,                6.332993507385254E-8",
+            "5.960464477539063E-8, 6.332993507385254E-8",
+            "1e15,                 2.130303778816E12",
+            "2.130303778816E12,    2.130303778816E12",
+            // negatives mirror positives
+            "-1.0,                -1.0625",
+            "-1.125,              -1.1875",
+            "0,                    0",
+    })
+    void placesValuesInBuckets(double value, double midpoint) {
+        StreamingHistogram histogram = new StreamingHistogram();
+        // anchors far on both sides, so the estimate is not clamped to the recorded value
+        histogram.record(-1e300);
+        histogram.record(value);
+        histogram.record(1e300);
+        assertEquals(midpoint, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    void percentilesAreWithinBucketError() {
+        Random random = new Random(1);
+        StreamingHistogram histogram = new StreamingHistogram();
+        double[] values = new double[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal, like latencies, spanning several powers of two
+            values[i] = Math.exp(random.nextGaussian() * 3);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (int i = 1; i < 1000; i++) {
+            double percentile = i / 1000.0;
+            double exact = values[(int) Math.ceil(percentile * values.length) - 1];
+            double estimate = histogram.getPercentile(percentile);
+            assertEquals(exact, estimate, exact * ERROR, "p" + percentile);
+        }
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(Arrays.stream(values).sum(), histogram.getSum(), 1e-6 * histogram.getSum());
+    }
+
+    @Test
+    void mixedSignsAreOrdered() {
+        StreamingHistogram histogram = new StreamingHistogram();
+        for (int i = -50; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertEquals(-50, histogram.getPercentile(0));
+        assertEquals(-25, histogram.getPercentile(25.5 / 101), 25 * ERROR);
+        assertEquals(0, histogram.getPercentile(50.5 / 101));
+        assertEquals(25, histogram.getPercentile(75.5 / 101), 25 * ERROR);
+        assertEquals(50, histogram.getPercentile(1));
+        assertEquals(0, histogram.getMean(), 1e-12);
+    }
+
+    @Test
+    void mergeMatchesRecordingEverything() {
+        Random random = new Random(2);
+        StreamingHistogram all = new StreamingHistogram();
+        StreamingHistogram first = new StreamingHistogram();
+        StreamingHistogram second = new StreamingHistogram();
+        for (int i = 0; i < 10_000; i++) {
+            // the halves cover different ranges so both ends of the merged result come from different sides
+            double low = random.nextDouble() * 10 - 5;
+            double high = 1 + random.nextDouble() * 1_000;
+            all.record(low);
+            all.record(high);
+            first.record(low);
+            second.record(high);
+        }
+
+        StreamingHistogram merged = new StreamingHistogram();
+        merged.merge(first);
+        merged.merge(second);
+        // merging nothing changes nothing, in particular not the minimum and maximum
+        merged.merge(new StreamingHistogram());
+
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.getSum(), merged.getSum(), 1e-9 * Math.abs(all.getSum()));
+        assertEquals(all.getMin(), merged.getMin());
+        assertEquals(all.getMax(), merged.getMax());
+        for (int i = 0; i <= 100; i++) {
+            assertEquals(all.getPercentile(i / 100.0), merged.getPercentile(i / 100.0), "p" + i);
+        }
+
+        // the sources are left as they were
+        assertEquals(10_000, first.getCount());
+        assertEquals(10_000, second.getCount());
+    }
+
+    @Test
+    void emptyAndReset() {
+        StreamingHistogram histogram = new StreamingHistogram();
+        histogram.record(Double.NaN);
+        assertEmpty(histogram);
+
+        histogram.record(3);
+        histogram.record(-7);
+        assertEquals(2, histogram.getCount());
+        histogram.reset();
+        assertEmpty(histogram);
+
+        histogram.record(5);
+        assertEquals(5, histogram.getPercentile(0.5));
+        assertEquals(5, histogram.getMin());
+        assertEquals(5, histogram.getMax());
+    }
+
+    private static void assertEmpty(StreamingHistogram histogram) {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getMin());
+        assertEquals(Double.NEGATIVE_INFINITY, histogram.getMax());
+    }
+}
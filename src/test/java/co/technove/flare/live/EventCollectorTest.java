@@ -0,0 +1,116 @@
+package co.technove.flare.live;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventCollectorTest {
+
+    private static final CollectorData FIRST = new CollectorData("test:first", "First", "Events of the first type");
+    private static final CollectorData SECOND = new CollectorData("test:second", "Second", "Events of the second type");
+    private static final int CAPACITY = 8;
+
+    @Test
+    void dropNewestKeepsQueuedEvents() {
+        TestCollector collector = new TestCollector(EventCollector.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < CAPACITY; i++) {
+            collector.report(FIRST, i);
+        }
+        for (int i = 0; i < 3; i++) {
+            collector.report(SECOND, CAPACITY + i);
+        }
+        collector.report(FIRST, CAPACITY + 3);
+
+        assertTimes(collector.getAndCopyEvents(), 0, CAPACITY);
+        assertEquals(Map.of(FIRST, 1L, SECOND, 3L), collector.getAndResetDropped());
+        assertEquals(Map.of(), collector.getAndResetDropped());
+    }
+
+    @Test
+    void dropOldestKeepsNewEvents() {
+        TestCollector collector = new TestCollector(EventCollector.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 2; i++) {
+            collector.report(SECOND, i);
+        }
+        for (int i = 2; i < CAPACITY + 5; i++) {
+            collector.report(FIRST, i);
+        }
+
+        assertTimes(collector.getAndCopyEvents(), 5, CAPACITY);
+        assertEquals(Map.of(FIRST, 3L, SECOND, 2L), collector.getAndResetDropped());
+        assertEquals(Map.of(), collector.getAndResetDropped());
+
+        // the queue is empty again, so nothing more is dropped
+        collector.report(FIRST, 0);
+        assertEquals(1, collector.getAndCopyEvents().size());
+        assertEquals(Map.of(), collector.getAndResetDropped());
+    }
+
+    @Test
+    void neverHoldsMoreThanItsCapacity() throws Exception {
+        for (EventCollector.OverflowPolicy policy : EventCollector.OverflowPolicy.values()) {
+            // a single slot makes reporters race for it as often as possible
+            TestCollector collector = new TestCollector(1, policy);
+            int threads = 4;
+            int perThread = 50_000;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> reporters = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int j = 0; j < perThread; j++) {
+                        collector.report(FIRST, j);
+                    }
+                });
+                thread.start();
+                reporters.add(thread);
+            }
+            start.countDown();
+
+            long drained = 0;
+            while (reporters.stream().anyMatch(Thread::isAlive)) {
+                int size = collector.getAndCopyEvents().size();
+                assertTrue(size <= 1, policy + " held " + size + " events");
+                drained += size;
+            }
+            for (Thread thread : reporters) {
+                thread.join();
+            }
+            drained += collector.getAndCopyEvents().size();
+            long dropped = collector.getAndResetDropped().getOrDefault(FIRST, 0L);
+
+            assertEquals((long) threads * perThread, drained + dropped, policy + " lost events");
+        }
+    }
+
+    private static void assertTimes(List<LiveEvent> events, int first, int count) {
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, events.get(i).getTime());
+        }
+    }
+
+    private static final class TestCollector extends EventCollector {
+        private TestCollector(OverflowPolicy overflowPolicy) {
+            this(CAPACITY, overflowPolicy);
+        }
+
+        private TestCollector(int capacity, OverflowPolicy overflowPolicy) {
+            super(capacity, overflowPolicy, FIRST, SECOND);
+        }
+
+        private void report(CollectorData data, long time) {
+            this.reportEvent(new LiveEvent(data, time, 0, Map.of()));
+        }
+    }
+}
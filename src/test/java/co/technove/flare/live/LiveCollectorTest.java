@@ -0,0 +1,123 @@
+package co.technove.flare.live;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LiveCollectorTest {
+
+    private static final CollectorData DATA = new CollectorData("test:data", "Data", "Values reported by the test");
+    // the most values a data type holds between two drains
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    @Test
+    void growsInsteadOfDropping() throws Exception {
+        TestCollector collector = new TestCollector();
+        int threads = 4;
+        int perThread = 200_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> reporters = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int offset = i * perThread;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (int j = 0; j < perThread; j++) {
+                    collector.report(offset + j);
+                }
+            });
+            thread.start();
+            reporters.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : reporters) {
+            thread.join();
+        }
+
+        boolean[] seen = new boolean[threads * perThread];
+        collector.useDataThenClear(data -> {
+            data.get(DATA).visitArray((array, size) -> {
+                assertEquals(seen.length, size);
+                for (int i = 0; i < size; i++) {
+                    seen[(int) array[i]] = true;
+                }
+            });
+            return null;
+        });
+        for (int i = 0; i < seen.length; i++) {
+            assertTrue(seen[i], "value " + i + " was lost");
+        }
+        assertEquals(Map.of(), collector.getAndResetDropped());
+
+        // the next buffer starts out large enough, and still hands back exactly what was reported
+        for (int i = 0; i < 1000; i++) {
+            collector.report(i);
+        }
+        assertEquals(1000, (int) collector.useDataThenClear(data -> data.get(DATA).size()));
+    }
+
+    @Test
+    void keepsEveryValueWhileDraining() throws Exception {
+        TestCollector collector = new TestCollector();
+        int reported = 2_000_000;
+        Thread reporter = new Thread(() -> {
+            for (int i = 0; i < reported; i++) {
+                collector.report(1);
+            }
+        });
+        reporter.start();
+
+        long drained = 0;
+        while (reporter.isAlive()) {
+            drained += collector.useDataThenClear(data -> data.get(DATA).size());
+        }
+        reporter.join();
+        drained += collector.useDataThenClear(data -> data.get(DATA).size());
+        Long dropped = collector.getAndResetDropped().getOrDefault(DATA, 0L);
+
+        assertEquals(reported, drained + dropped);
+    }
+
+    @Test
+    void countsValuesPastTheLimit() {
+        TestCollector collector = new TestCollector();
+        for (int i = 0; i < MAX_CAPACITY + 10; i++) {
+            collector.report(i);
+        }
+
+        collector.useDataThenClear(data -> {
+            data.get(DATA).visitArray((array, size) -> {
+                assertEquals(MAX_CAPACITY, size);
+                for (int i = 0; i < size; i++) {
+                    assertEquals(i, array[i]);
+                }
+            });
+            return null;
+        });
+        assertEquals(Map.of(DATA, 10L), collector.getAndResetDropped());
+        assertEquals(Map.of(), collector.getAndResetDropped());
+    }
+
+    private static final class TestCollector extends LiveCollector {
+        private TestCollector() {
+            super(DATA);
+        }
+
+        private void report(double value) {
+            this.report(DATA, value);
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package co.technove.flare.sink;
+
+import co.technove.flare.internal.profiling.ProfileDeltaDecoder;
+import co.technove.flare.proto.ProfilerFileProto;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryProfileSinkTest {
+
+    private static final int CAPACITY = 6;
+    private static final int KEYFRAME_INTERVAL = 4;
+    // each window adds this many methods, and a node for each of them
+    private static final int METHODS_PER_WINDOW = 2;
+
+    @Test
+    void wrappedPayloadsDecode() throws Exception {
+        MemoryProfileSink sink = new MemoryProfileSink(CAPACITY);
+        sink.accept(new SinkPayload(SinkPayload.Type.CREATE, out -> out.write(new byte[0])));
+        for (int sequence = 0; sequence < 23; sequence++) {
+            sink.accept(window(sequence, sequence % KEYFRAME_INTERVAL == 0));
+            sink.accept(new SinkPayload(SinkPayload.Type.TIMELINE, out -> out.write(new byte[0])));
+        }
+
+        List<SinkPayload> payloads = sink.getPayloads();
+        assertTrue(payloads.size() <= CAPACITY + 2 * KEYFRAME_INTERVAL, "kept " + payloads.size() + " payloads");
+        assertTrue(sink.getOverwritten() > 0);
+        assertDecodable(payloads, 22);
+        // completing the oldest window is only done once, and must not change what is returned
+        assertDecodable(sink.getPayloads(), 22);
+    }
+
+    @Test
+    void keepsPayloadsUntilTheNextKeyframe() throws Exception {
+        MemoryProfileSink sink = new MemoryProfileSink(2);
+        for (int sequence = 0; sequence < KEYFRAME_INTERVAL; sequence++) {
+            sink.accept(window(sequence, sequence == 0));
+        }
+        // nothing can be dropped without losing the base of the deltas
+        assertEquals(KEYFRAME_INTERVAL, sink.getPayloads().size());
+        assertEquals(0, sink.getOverwritten());
+
+        sink.accept(window(KEYFRAME_INTERVAL, true));
+        assertEquals(1, sink.getPayloads().size());
+        assertEquals(KEYFRAME_INTERVAL, sink.getOverwritten());
+        assertDecodable(sink.getPayloads(), KEYFRAME_INTERVAL);
+    }
+
+    private static void assertDecodable(List<SinkPayload> payloads, int lastSequence) throws Exception {
+        ProfileDeltaDecoder decoder = new ProfileDeltaDecoder();
+        List<String> methods = new ArrayList<>();
+        List<String> packages = new ArrayList<>();
+        long sequence = -1;
+        for (SinkPayload payload : payloads) {
+            if (payload.getType() != SinkPayload.Type.WINDOW) {
+                continue;
+            }
+            ProfilerFileProto.AirplaneProfileFile window = decoder.apply(ProfilerFileProto.AirplaneProfileFile.parseFrom(payload.toByteArray()));
+            ProfilerFileProto.MethodDictionarySlice slice = window.getV2().getDictionary();
+            for (ProfilerFileProto.MethodDictionarySlice.MethodDictionaryEntry entry : slice.getEntriesList()) {
+                methods.add(entry.getOtherEntry().getPath());
+            }
+            packages.addAll(slice.getPackageEntriesList());
+            sequence = window.getV2().getSequence();
+
+            // every method the window refers to must be known by now, under the name it was added with
+            int count = (int) (sequence + 1) * METHODS_PER_WINDOW;
+            assertEquals(count, methods.size(), "dictionary of window " + sequence);
+            assertEquals((int) sequence + 1, packages.size(), "packages of window " + sequence);
+            List<ProfilerFileProto.TimeProfileV2.Children> children = window.getV2().getTimeProfile(0).getChildrenList();
+            assertEquals(count, children.size(), "nodes of window " + sequence);
+            for (int name = 0; name < count; name++) {
+                ProfilerFileProto.TimeProfileV2.Children child = children.get(name);
+                assertEquals(name, child.getName());
+                assertEquals(name + 1, child.getTime());
+                assertEquals("method" + name, methods.get(child.getName()));
+            }
+        }
+        assertEquals(lastSequence, sequence);
+    }
+
+    // the tree only ever grows, so a delta window just adds the nodes of its new methods
+    private static SinkPayload window(int sequence, boolean keyframe) {
+        ProfilerFileProto.MethodDictionarySlice.Builder slice = ProfilerFileProto.MethodDictionarySlice.newBuilder()
+                .addPackageEntries("package" + sequence);
+        ProfilerFileProto.TimeProfileV2.Builder thread = ProfilerFileProto.TimeProfileV2.newBuilder().setThread("main");
+        int first = sequence * METHODS_PER_WINDOW;
+        for (int name = 0; name < first + METHODS_PER_WINDOW; name++) {
+            if (name >= first) {
+                slice.addEntries(ProfilerFileProto.MethodDictionarySlice.MethodDictionaryEntry.newBuilder()
+                        .setOtherEntry(ProfilerFileProto.MethodDictionarySlice.OtherDictionaryEntry.newBuilder().setPath("method" + name)));
+            }
+            if (keyframe || name >= first) {
+                thread.addChildren(ProfilerFileProto.TimeProfileV2.Children.newBuilder().setName(name).setTime(name + 1));
+            }
+        }
+        ProfilerFileProto.MethodDictionarySlice dictionary = slice.build();
+        byte[] data = ProfilerFileProto.AirplaneProfileFile.newBuilder()
+                .setV2(ProfilerFileProto.AirplaneProfileFile.V2Data.newBuilder()
+                        .setDictionary(dictionary)
+                        .setSequence(sequence)
+                        .setDelta(!keyframe)
+                        .addTimeProfile(thread))
+                .build()
+                .toByteArray();
+        return new SinkPayload(out -> out.write(data), keyframe, dictionary);
+    }
+}